@@ -14,8 +14,12 @@ import io.gomint.proxprox.api.command.ConsoleCommandSender;
 import io.gomint.proxprox.api.entity.Player;
 import io.gomint.proxprox.api.event.PlayerQuitEvent;
 import io.gomint.proxprox.config.ProxyConfig;
+import io.gomint.proxprox.network.ConnectionReaderPool;
 import io.gomint.proxprox.network.CustomProtocolChannels;
+import io.gomint.proxprox.network.EncryptionHandler;
 import io.gomint.proxprox.network.EncryptionKeyFactory;
+import io.gomint.proxprox.network.LoginQueue;
+import io.gomint.proxprox.network.PlayerUpdater;
 import io.gomint.proxprox.network.SocketEventListener;
 import io.gomint.proxprox.network.UpstreamConnection;
 import io.gomint.proxprox.plugin.PluginManager;
@@ -62,8 +66,7 @@ public class ProxProx implements Proxy {
     private ProxyConfig config;
 
     // Thread pools
-    private ThreadFactory clientConnectionsThreadFactory = new ThreadFactoryBuilder().setNameFormat( "UpStream-Connection-%d" ).build();
-    private ThreadFactory serverConnectionsThreadFactory = new ThreadFactoryBuilder().setNameFormat( "DownStream-Connection-%d" ).build();
+    private ThreadFactory connectionReaderThreadFactory = new ThreadFactoryBuilder().setNameFormat( "Connection-Reader-%d" ).build();
 
     // Task scheduling
     @Getter
@@ -71,6 +74,24 @@ public class ProxProx implements Proxy {
     @Getter
     private SyncTaskManager syncTaskManager;
 
+    // Packet reading
+    @Getter
+    private ConnectionReaderPool connectionReaderPool;
+
+    // Packet compression and encryption
+    @Getter
+    private ExecutorService postProcessExecutor;
+    @Getter
+    private ScheduledExecutorService flushScheduler;
+
+    // Login processing
+    @Getter
+    private LoginQueue loginQueue;
+
+    // Player ticking
+    @Getter
+    private PlayerUpdater playerUpdater;
+
     // Listener
     private ServerSocket serverSocket;
     @Getter
@@ -85,6 +106,7 @@ public class ProxProx implements Proxy {
 
     // Player maps
     private Map<UUID, Player> players = new ConcurrentHashMap<>();
+    private Map<String, Player> playerNames = new ConcurrentHashMap<>();
 
     // Custom networking
     private CustomProtocolChannels networkChannels;
@@ -105,6 +127,23 @@ public class ProxProx implements Proxy {
         System.setProperty( "io.netty.selectorAutoRebuildThreshold", "0" );     // Never rebuild selectors
         ResourceLeakDetector.setLevel( ResourceLeakDetector.Level.DISABLED );   // Eats performance
 
+        // Load config first so we can override
+        this.config = new ProxyConfig();
+
+        try {
+            this.config.initialize( new File( "config.cfg" ) );
+        } catch ( IOException e ) {
+            logger.error( "Could not init config.cfg. Please check for corruption.", e );
+            System.exit( -1 );
+        }
+
+        // Parse optional arguments
+        if ( !parseCommandLineArguments( args ) ) {
+            System.exit( -1 );
+        }
+
+        EncryptionHandler.setUseJdkCipher( this.config.isUseJdkCipher() );
+
         // ------------------------------------ //
         // Executor Initialization
         // ------------------------------------ //
@@ -125,20 +164,8 @@ public class ProxProx implements Proxy {
         long skipNanos = TimeUnit.SECONDS.toNanos( 1 ) / 100;
         this.syncTaskManager = new SyncTaskManager( this, skipNanos );
 
-        // Load config first so we can override
-        this.config = new ProxyConfig();
-
-        try {
-            this.config.initialize( new File( "config.cfg" ) );
-        } catch ( IOException e ) {
-            logger.error( "Could not init config.cfg. Please check for corruption.", e );
-            System.exit( -1 );
-        }
-
-        // Parse optional arguments
-        if ( !parseCommandLineArguments( args ) ) {
-            System.exit( -1 );
-        }
+        int updateShards = this.config.getUpdateShards() > 0 ? this.config.getUpdateShards() : Runtime.getRuntime().availableProcessors();
+        this.playerUpdater = new PlayerUpdater( updateShards, new ThreadFactoryBuilder().setNameFormat( "Player-Update-%d" ).build(), skipNanos );
 
         // Build up custom networking
         this.networkChannels = new CustomProtocolChannels( this );
@@ -157,6 +184,23 @@ public class ProxProx implements Proxy {
         // Register default commands
         this.pluginManager.registerCommand( null, new Commandend( this ) );
         this.pluginManager.registerCommand( null, new Commandplugins( this.pluginManager ) );
+        this.pluginManager.registerCommand( null, new Commandstats( this ) );
+
+        // Start reading threads, all connections are spread over them by their GUID
+        int readerThreads = this.config.getReaderThreads() > 0 ? this.config.getReaderThreads() : Runtime.getRuntime().availableProcessors();
+        this.connectionReaderPool = new ConnectionReaderPool( readerThreads, this.config.getReaderIdleParkMicros(), this.connectionReaderThreadFactory );
+        logger.info( "Reading connections with " + readerThreads + " threads, idle threads look for packets every " + this.config.getReaderIdleParkMicros() + " us" );
+
+        // Outgoing batches get compressed and encrypted outside of the main tick
+        int postProcessThreads = this.config.getPostProcessThreads() > 0 ? this.config.getPostProcessThreads() : Runtime.getRuntime().availableProcessors();
+        this.postProcessExecutor = Executors.newFixedThreadPool( postProcessThreads, new ThreadFactoryBuilder().setNameFormat( "PostProcess-%d" ).build() );
+        logger.info( "Compressing packets with " + postProcessThreads + " threads" );
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setNameFormat( "Flush-Scheduler-%d" ).build() );
+
+        // Logins need a lot of crypto, keep them away from the reader threads
+        int loginThreads = this.config.getLoginThreads() > 0 ? this.config.getLoginThreads() : Runtime.getRuntime().availableProcessors();
+        this.loginQueue = new LoginQueue( loginThreads, this.config.getLoginQueueSize(), new ThreadFactoryBuilder().setNameFormat( "Login-%d" ).build() );
+        logger.info( "Processing logins with " + loginThreads + " threads" );
 
         // Bind upstream UDP Raknet
         this.serverSocket = new ServerSocket( 10000 );
@@ -212,9 +256,7 @@ public class ProxProx implements Proxy {
                 long currentMillis = System.currentTimeMillis();
                 this.syncTaskManager.update( currentMillis, lastTickTime );
 
-                for ( Map.Entry<UUID, Player> entry : this.players.entrySet() ) {
-                    ( (UpstreamConnection) entry.getValue() ).update();
-                }
+                this.playerUpdater.update();
 
                 long diff = System.nanoTime() - start;
                 lastTickTime = (float) diff / 1000000.0F;
@@ -273,26 +315,6 @@ public class ProxProx implements Proxy {
         return true;
     }
 
-    /**
-     * Create a new thread for a UpStreamConnection
-     *
-     * @param runnable The runnable which should be executed
-     * @return New Thread with the runnable loaded, ready to start
-     */
-    public Thread getNewClientConnectionThread( Runnable runnable ) {
-        return clientConnectionsThreadFactory.newThread( runnable );
-    }
-
-    /**
-     * Create a new thread for a DownStreamConnection
-     *
-     * @param runnable The runnable which should be executed
-     * @return New Thread with the runnable loaded, ready to start
-     */
-    public Thread getNewServerConnectionThread( Runnable runnable ) {
-        return serverConnectionsThreadFactory.newThread( runnable );
-    }
-
     /**
      * Gracefully shutdown
      */
@@ -307,6 +329,11 @@ public class ProxProx implements Proxy {
 
         // Shut down
         this.running.set( false );
+        this.connectionReaderPool.shutdown();
+        this.postProcessExecutor.shutdown();
+        this.flushScheduler.shutdown();
+        this.loginQueue.shutdown();
+        this.playerUpdater.shutdown();
     }
 
     @Override
@@ -320,12 +347,34 @@ public class ProxProx implements Proxy {
     }
 
     // ---------- Internal Player ADD / REMOVE -------------- //
-    public void addPlayer( UpstreamConnection upstreamConnection ) {
-        this.players.put( upstreamConnection.getUUID(), upstreamConnection );
+    /**
+     * Add a player which has logged in. UUID and name are claimed atomically so only one login per account can win.
+     *
+     * @param upstreamConnection The player which should be added
+     * @return true when the player has been added, false when the UUID or name is already online
+     */
+    public boolean addPlayer( UpstreamConnection upstreamConnection ) {
+        if ( this.players.putIfAbsent( upstreamConnection.getUUID(), upstreamConnection ) != null ) {
+            return false;
+        }
+
+        if ( this.playerNames.putIfAbsent( upstreamConnection.getName(), upstreamConnection ) != null ) {
+            this.players.remove( upstreamConnection.getUUID(), upstreamConnection );
+            return false;
+        }
+
+        this.playerUpdater.add( upstreamConnection );
+        return true;
     }
 
     public void removePlayer( UpstreamConnection upstreamConnection ) {
-        this.players.remove( upstreamConnection.getUUID() );
+        // Only remove our own entry, a rejected login of the same account must not remove the online player
+        if ( !this.players.remove( upstreamConnection.getUUID(), upstreamConnection ) ) {
+            return;
+        }
+
+        this.playerNames.remove( upstreamConnection.getName(), upstreamConnection );
+        this.playerUpdater.remove( upstreamConnection );
 
         PlayerQuitEvent quitEvent = new PlayerQuitEvent( upstreamConnection );
         pluginManager.callEvent( quitEvent );
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.commands;
+
+import io.gomint.proxprox.ProxProx;
+import io.gomint.proxprox.api.ChatColor;
+import io.gomint.proxprox.api.command.Command;
+import io.gomint.proxprox.api.command.CommandSender;
+import io.gomint.proxprox.api.entity.Player;
+import io.gomint.proxprox.network.ConnectionReaderPool;
+import io.gomint.proxprox.network.LoginQueue;
+import io.gomint.proxprox.network.NetworkStats;
+import io.gomint.proxprox.network.PlayerUpdater;
+import io.gomint.proxprox.network.UpstreamConnection;
+import io.gomint.proxprox.network.ZlibPool;
+
+/**
+ * @author geNAZt
+ * @version 1.0
+ */
+public class Commandstats extends Command {
+
+    private final ProxProx proxProx;
+
+    /**
+     * This command prints runtime statistics of the network stack
+     *
+     * @param proxProx The proxy instance which should be inspected
+     */
+    public Commandstats( ProxProx proxProx ) {
+        super( "stats", "Show network statistics of the proxy, give a player name to see its queueing delays" );
+        this.proxProx = proxProx;
+    }
+
+    @Override
+    public void execute( CommandSender sender, String[] args ) {
+        if ( args.length > 0 ) {
+            for ( Player player : this.proxProx.getPlayers() ) {
+                if ( player.getName().equalsIgnoreCase( args[0] ) ) {
+                    sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Queueing delay of " + ChatColor.YELLOW + player.getName() + ChatColor.RED + ": " +
+                            ChatColor.YELLOW + ( (UpstreamConnection) player ).getQueueDelay() );
+                    return;
+                }
+            }
+
+            sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Player " + ChatColor.YELLOW + args[0] + ChatColor.RED + " is not online" );
+            return;
+        }
+
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Zlib: " + ChatColor.YELLOW + ZlibPool.getDeflaterCount() + ChatColor.RED + " deflaters, " +
+                ChatColor.YELLOW + ZlibPool.getInflaterCount() + ChatColor.RED + " inflaters, " +
+                ChatColor.YELLOW + ( ZlibPool.getNativeMemory() / 1024 ) + ChatColor.RED + " KiB native memory" );
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Decompression: " + ChatColor.YELLOW + NetworkStats.getOversizedBatches() + ChatColor.RED + " oversized batches, " +
+                ChatColor.YELLOW + NetworkStats.getInflateBudgetExceeded() + ChatColor.RED + " exceeded budgets" );
+
+        ConnectionReaderPool readerPool = this.proxProx.getConnectionReaderPool();
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Readers: " + ChatColor.YELLOW + readerPool.getShardCount() + ChatColor.RED + " threads, idle park " +
+                ChatColor.YELLOW + readerPool.getIdleParkMicros() + ChatColor.RED + " us, " +
+                ChatColor.YELLOW + readerPool.getIdleWakeups() + ChatColor.RED + " idle wakeups" );
+
+        LoginQueue loginQueue = this.proxProx.getLoginQueue();
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Logins: " + ChatColor.YELLOW + loginQueue.getQueueDepth() + ChatColor.RED + " queued, " +
+                ChatColor.YELLOW + loginQueue.getRejected() + ChatColor.RED + " rejected" );
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Login wait: " + ChatColor.YELLOW + loginQueue.getWaitTime() );
+        sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Login time: " + ChatColor.YELLOW + loginQueue.getLoginTime() );
+
+        for ( PlayerUpdater.Shard shard : this.proxProx.getPlayerUpdater().getShards() ) {
+            sender.sendMessage( ProxProx.PROX_PREFIX + ChatColor.RED + "Update shard #" + shard.getId() + ": " + ChatColor.YELLOW + shard.getPlayerCount() + ChatColor.RED + " players, last tick " +
+                    ChatColor.YELLOW + String.format( "%.2f", shard.getLastUpdateNanos() / 1000000.0 ) + ChatColor.RED + " ms, " +
+                    ChatColor.YELLOW + shard.getOverruns() + ChatColor.RED + " overruns" );
+        }
+    }
+
+}
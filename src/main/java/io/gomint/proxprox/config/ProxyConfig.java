@@ -30,4 +30,49 @@ public class ProxyConfig extends SimpleConfig {
     @Comment("Gomint servers can use TCP listeners instead of Raknet to safe additional network delay and encryption overheads")
     private boolean useTCP = true;
 
+    @Comment("Use one TCP connection per server for all players instead of one per player. The servers need to support multiplexed links")
+    private boolean multiplexTCP = false;
+
+    @Comment("Time in milliseconds a connection to a server may take before the switch is given up. 0 uses the default of netty (30 seconds)")
+    private int connectTimeoutMillis = 5000;
+
+    @Comment("Time in milliseconds a server may take from the connection attempt until the player has spawned. 0 waits forever")
+    private int loginTimeoutMillis = 15000;
+
+    @Comment("Maximum amount of bytes of server packets which are held back while a client finishes its login handshake. Clients above this get disconnected. 0 disables the limit")
+    private int maxHeldBytes = 16 * 1024 * 1024;
+
+    @Comment("Amount of threads which read and rewrite packets of all connections. 0 uses one thread per CPU core")
+    private int readerThreads = 0;
+
+    @Comment("Time in microseconds a reader thread without incoming packets sleeps before it looks again. Lower values cut latency on quiet threads but wake them up more often")
+    private int readerIdleParkMicros = 1000;
+
+    @Comment("Amount of threads which compress and encrypt outgoing packets. 0 uses one thread per CPU core")
+    private int postProcessThreads = 0;
+
+    @Comment("Amount of threads which validate logins and setup encryption. 0 uses one thread per CPU core")
+    private int loginThreads = 0;
+
+    @Comment("Amount of logins which may wait for a login thread, players above this get asked to try again later")
+    private int loginQueueSize = 1000;
+
+    @Comment("Amount of shards the players get spread over for their tick update, every shard is updated by its own thread. 0 uses one shard per CPU core")
+    private int updateShards = 0;
+
+    @Comment("Packets of idle connections are sent right away. While a connection keeps sending, packets are collected for this many microseconds before they are sent in one batch")
+    private int flushWindowMicros = 2000;
+
+    @Comment("Collected packets are sent without waiting for the flush window once they reach this many bytes")
+    private int flushWindowBytes = 8 * 1024;
+
+    @Comment("Maximum size in bytes a batch packet of a client may have after decompression. 0 disables the limit")
+    private int maxInflatedBatchSize = 4 * 1024 * 1024;
+
+    @Comment("Maximum amount of bytes a client may decompress per second. 0 disables the limit")
+    private long maxInflatedBytesPerSecond = 16 * 1024 * 1024;
+
+    @Comment("Use the AES implementation of the JDK (uses AES-NI when available) for encryption. When false or when the JDK does not support it BouncyCastle is used")
+    private boolean useJdkCipher = true;
+
 }
@@ -8,6 +8,7 @@
 package io.gomint.proxprox.config;
 
 import com.blackypaw.simpleconfig.SimpleConfig;
+import com.blackypaw.simpleconfig.annotation.Comment;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
@@ -25,4 +26,11 @@ public class ServerConfig extends SimpleConfig {
     private String ip;
     private int port;
 
+    @Comment("Set to true when the server is in a private network. The proxy then asks it to skip encryption")
+    private boolean trusted;
+
+    public ServerConfig( String ip, int port ) {
+        this( ip, port, false );
+    }
+
 }
@@ -41,6 +41,7 @@ public class JwtToken {
 		}
 		
 		JwtToken token = new JwtToken();
+		token.raw = s;
 		token.header = new JwtHeader( (JSONObject) jwtHeaderRaw );
 		token.claims = (JSONObject) jwtClaimsRaw;
 		token.signatureBytes = ( split[0] + '.' + split[1] ).getBytes( StandardCharsets.US_ASCII );
@@ -49,6 +50,7 @@ public class JwtToken {
 		return token;
 	}
 	
+	private String              raw;
 	private JwtHeader           header;
 	private JSONObject claims;
 	
@@ -67,6 +69,15 @@ public class JwtToken {
 		
 	}
 	
+	/**
+	 * Returns the encoded form this JwtToken has been parsed from.
+	 *
+	 * @return The encoded token including its signature
+	 */
+	public String getRaw() {
+		return this.raw;
+	}
+	
 	/**
 	 * Returns the JwtHeader associated with this JwtToken. May be used to query additional information.
 	 *
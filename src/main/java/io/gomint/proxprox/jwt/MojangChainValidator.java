@@ -7,6 +7,8 @@
 
 package io.gomint.proxprox.jwt;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.gomint.proxprox.network.EncryptionHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +21,7 @@ import java.security.interfaces.ECPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author BlackyPaw
@@ -30,6 +33,18 @@ public class MojangChainValidator {
     private static final String MOJANG_TRUSTED_PUBLIC_KEY_BASE64 = "MHYwEAYHKoZIzj0CAQYFK4EEACIDYgAE8ELkixyLcwlZryUQcu1TvPOmI2B7vX83ndnWRUaXm74wFfa5f/lwQNTfrLVHa2PmenpGI6JhIMUJaWZrjmMj90NoKNFSNBuKdm8rYiXsfaz3K36x/1U26HpG0ZxK/V1V";
     private static final PublicKey MOJANG_TRUSTED_PUBLIC_KEY;
 
+    // Intermediate tokens are the same for a lot of players, remember which of them have already been verified
+    private static final int CACHE_SIZE = 1024;
+    private static final long CACHE_TTL_MINUTES = 60;
+    private static final Cache<String, Boolean> VERIFIED_TOKENS = CacheBuilder.newBuilder()
+            .maximumSize( CACHE_SIZE )
+            .expireAfterWrite( CACHE_TTL_MINUTES, TimeUnit.MINUTES )
+            .build();
+    private static final Cache<String, PublicKey> AUTHORITY_KEYS = CacheBuilder.newBuilder()
+            .maximumSize( CACHE_SIZE )
+            .expireAfterWrite( CACHE_TTL_MINUTES, TimeUnit.MINUTES )
+            .build();
+
     static {
         MOJANG_TRUSTED_PUBLIC_KEY = EncryptionHandler.createPublicKey( MOJANG_TRUSTED_PUBLIC_KEY_BASE64 );
         if ( MOJANG_TRUSTED_PUBLIC_KEY == null ) {
@@ -105,16 +120,26 @@ public class MojangChainValidator {
                     return false;
                 }
 
-                try {
-                    // We always use ES384 independently of what the client sent us in order to prevent algorithm exchange
-                    // attacks as described here: https://auth0.com/blog/critical-vulnerabilities-in-json-web-token-libraries/
-                    if ( !nextToken.validateSignature( JwtAlgorithm.ES384, trustedKeys.get( x5u ) ) ) {
-                        // Seems to be a forged token:
+                // Tokens without player data are shared by a lot of players. The encoded token contains its signature
+                // and the x5u header so a cached result only counts when the token has been signed by a trusted key
+                Map<String, Object> extraData = nextToken.getClaim( Map.class, "extraData" );
+                boolean authorityToken = extraData == null;
+                if ( !authorityToken || VERIFIED_TOKENS.getIfPresent( nextToken.getRaw() ) == null ) {
+                    try {
+                        // We always use ES384 independently of what the client sent us in order to prevent algorithm exchange
+                        // attacks as described here: https://auth0.com/blog/critical-vulnerabilities-in-json-web-token-libraries/
+                        if ( !nextToken.validateSignature( JwtAlgorithm.ES384, trustedKeys.get( x5u ) ) ) {
+                            // Seems to be a forged token:
+                            return false;
+                        }
+                    } catch ( JwtSignatureException e ) {
+                        e.printStackTrace();
                         return false;
                     }
-                } catch ( JwtSignatureException e ) {
-                    e.printStackTrace();
-                    return false;
+
+                    if ( authorityToken ) {
+                        VERIFIED_TOKENS.put( nextToken.getRaw(), Boolean.TRUE );
+                    }
                 }
 
                 unverified.remove( nextToken );
@@ -130,13 +155,12 @@ public class MojangChainValidator {
                 }
 
                 // This certificate authority wants us to add its public key:
-                PublicKey key = EncryptionHandler.createPublicKey( identityPublicKeyBase64 );
+                PublicKey key = authorityToken ? getAuthorityKey( identityPublicKeyBase64 ) : EncryptionHandler.createPublicKey( identityPublicKeyBase64 );
                 if ( key != null ) {
                     trustedKeys.put( identityPublicKeyBase64, key );
                 }
 
                 // Check, if this token provides us with client details:
-                Map<String, Object> extraData = nextToken.getClaim( Map.class, "extraData" );
                 if ( extraData != null && !hasExtraData ) {
                     hasExtraData = true;
                     this.clientPublicKey = (ECPublicKey) key;
@@ -156,6 +180,18 @@ public class MojangChainValidator {
         }
     }
 
+    private static PublicKey getAuthorityKey( String base64 ) {
+        PublicKey key = AUTHORITY_KEYS.getIfPresent( base64 );
+        if ( key == null ) {
+            key = EncryptionHandler.createPublicKey( base64 );
+            if ( key != null ) {
+                AUTHORITY_KEYS.put( base64, key );
+            }
+        }
+
+        return key;
+    }
+
     private void detectClientInformationUnsafe() {
         for ( JwtToken token : this.chain ) {
             String identityPublicKeyBase64 = token.getClaim( String.class, "identityPublicKey" );
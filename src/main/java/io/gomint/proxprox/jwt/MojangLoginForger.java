@@ -25,11 +25,17 @@ import java.util.UUID;
 @Setter
 public class MojangLoginForger {
 
+    /**
+     * Time in milliseconds a forged chain stays valid
+     */
+    public static final long CHAIN_VALIDITY_MILLIS = 24 * 60 * 60 * 1000;
+
     private String username;
     private UUID uuid;
     private PublicKey publicKey;
     private JSONObject skinData;
     private String xuid;
+    private boolean trusted;
 
     @SuppressWarnings( "unchecked" )
     public String forge( PrivateKey privateKey ) {
@@ -49,8 +55,8 @@ public class MojangLoginForger {
 
         JSONObject claims = new JSONObject();
         claims.put( "nbf", timestamp );
-        claims.put( "exp", timestamp + 24 * 60 * 60 * 1000 );
-        claims.put( "iat", timestamp + 24 * 60 * 60 * 1000 );
+        claims.put( "exp", timestamp + CHAIN_VALIDITY_MILLIS );
+        claims.put( "iat", timestamp + CHAIN_VALIDITY_MILLIS );
         claims.put( "iss", "self" );
         claims.put( "certificateAuthority", true );
         // claims.put( "randomNonce", ThreadLocalRandom.current().nextInt() );
@@ -59,6 +65,10 @@ public class MojangLoginForger {
         extraData.put( "displayName", this.username );
         extraData.put( "identity", this.uuid.toString() );
         extraData.put( "proxprox.xuid", this.xuid );
+        if ( this.trusted ) {
+            // Tell the server that it doesn't need to encrypt the connection to us
+            extraData.put( "proxprox.trusted", true );
+        }
 
         claims.put( "extraData", extraData );
         claims.put( "identityPublicKey", publicKeyBase64 );
@@ -7,6 +7,8 @@
 
 package io.gomint.proxprox.network;
 
+import io.gomint.jraknet.Connection;
+import io.gomint.jraknet.EncapsulatedPacket;
 import io.gomint.jraknet.PacketBuffer;
 import io.gomint.jraknet.PacketReliability;
 import io.gomint.jraknet.datastructures.TriadRange;
@@ -21,7 +23,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.Deflater;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.DataFormatException;
 
 /**
  * @author geNAZt
@@ -31,8 +33,12 @@ public abstract class AbstractConnection {
 
     private static final Logger logger = LoggerFactory.getLogger( AbstractConnection.class );
 
-    protected ConnectionState state = ConnectionState.HANDSHAKE;
-    protected EncryptionHandler encryptionHandler = null;
+    protected volatile ConnectionState state = ConnectionState.HANDSHAKE;
+    protected volatile EncryptionHandler encryptionHandler = null;
+
+    // Decompression budget of the current second
+    private long inflateWindowStart;
+    private long inflatedInWindow;
 
     /**
      * Setup the internal structures needed for the Connection
@@ -55,52 +61,143 @@ public abstract class AbstractConnection {
             return;
         }
 
-        // Do we need to decrypt here?
-        byte[] input = new byte[buffer.getRemaining()];
-        System.arraycopy( buffer.getBuffer(), buffer.getPosition(), input, 0, input.length );
+        // Do we need to decrypt here? This is done in place since nobody else uses the received data
+        byte[] input = buffer.getBuffer();
+        int inputOffset = buffer.getPosition();
+        int inputLength = buffer.getRemaining();
         if ( this.encryptionHandler != null ) {
-            input = this.encryptionHandler.isEncryptionFromServerEnabled() ? this.encryptionHandler.decryptInputFromServer( input ) : this.encryptionHandler.decryptInputFromClient( input );
-            if ( input == null ) {
+            inputLength = this.encryptionHandler.isEncryptionFromServerEnabled() ?
+                    this.encryptionHandler.decryptFromServer( input, inputOffset, inputLength ) :
+                    this.encryptionHandler.decryptFromClient( input, inputOffset, inputLength );
+            if ( inputLength < 0 ) {
                 // Decryption error
                 disconnect( "Checksum of encrypted packet was wrong" );
                 return;
             }
         }
 
-        InflaterInputStream inflaterInputStream = new InflaterInputStream( new ByteArrayInputStream( input ) );
-
-        ByteArrayOutputStream bout = new ByteArrayOutputStream( buffer.getRemaining() );
-        byte[] batchIntermediate = new byte[256];
+        // Never inflate more than the batch limit or what is left of the budget for this second
+        int maxBatchSize = this.getMaxInflatedBatchSize();
+        long remainingBudget = this.getRemainingInflateBudget();
+        int maxLength = (int) Math.max( 0, Math.min( maxBatchSize > 0 ? maxBatchSize : Integer.MAX_VALUE, remainingBudget ) );
 
+        BatchDecoder decoder = BatchDecoder.get();
         try {
-            int read;
-            while ( ( read = inflaterInputStream.read( batchIntermediate ) ) > -1 ) {
-                bout.write( batchIntermediate, 0, read );
+            if ( !decoder.inflate( input, inputOffset, inputLength, maxLength ) ) {
+                if ( maxBatchSize > 0 && maxLength == maxBatchSize ) {
+                    NetworkStats.oversizedBatch();
+                    logger.warn( "Batch packet is bigger than " + maxBatchSize + " bytes after decompression, disconnecting" );
+                    disconnect( "Batch packet too big" );
+                } else {
+                    NetworkStats.inflateBudgetExceeded();
+                    logger.warn( "Connection decompressed more than " + this.getInflateBudgetPerSecond() + " bytes in one second, disconnecting" );
+                    disconnect( "Sending too much data" );
+                }
+
+                return;
             }
-        } catch ( IOException e ) {
+        } catch ( DataFormatException e ) {
             logger.error( "Failed to decompress batch packet", e );
             return;
         }
 
-        byte[] payload = bout.toByteArray();
+        this.inflatedInWindow += decoder.getLength();
 
-        PacketBuffer payloadBuffer = new PacketBuffer( payload, 0 );
-        while ( payloadBuffer.getRemaining() > 0 ) {
-            int packetLength = payloadBuffer.readUnsignedVarInt();
+        // When we don't need to touch any of the packets we can forward the still compressed data
+        BatchPassthrough passthrough = this.getBatchPassthrough();
+        if ( passthrough != null && this.canPassthroughBatch( passthrough, decoder ) ) {
+            passthrough.forward( input, inputOffset, inputLength );
+            return;
+        }
+
+        decoder.rewind();
+        while ( decoder.hasRemaining() ) {
+            int packetLength = decoder.readPacketLength();
+            if ( packetLength < 0 || packetLength > decoder.getRemaining() ) {
+                logger.error( "Malformed batch packet payload: Invalid packet length " + packetLength );
+                return;
+            }
 
-            byte[] payData = new byte[packetLength];
-            payloadBuffer.readBytes( payData );
-            PacketBuffer pktBuf = new PacketBuffer( payData, 0 );
+            // Handlers get a view into the decoder buffer, they need to copy everything they want to keep
+            byte packetId = decoder.peekPacketId();
+            PacketBuffer pktBuf = decoder.slice( packetLength );
             this.handlePacket( pktBuf, reliability, orderingChannel, true );
 
-            if ( pktBuf.getRemaining() > 0 ) {
+            if ( pktBuf.getRemaining() != 0 ) {
                 logger.error( "Malformed batch packet payload: Could not read enclosed packet data correctly: 0x" +
-                        Integer.toHexString( payData[0] ) + " remaining " + pktBuf.getRemaining() + " bytes" );
+                        Integer.toHexString( packetId & 0xFF ) + " remaining " + pktBuf.getRemaining() + " bytes" );
                 return;
             }
         }
     }
 
+    /**
+     * Check if all packets inside of a batch can be forwarded without being looked at
+     *
+     * @param passthrough The passthrough which decides which packets can be forwarded
+     * @param decoder     The decoder which holds the decompressed payload of the batch
+     * @return true when the batch can be forwarded as it is, false when it needs to be handled packet by packet
+     */
+    private boolean canPassthroughBatch( BatchPassthrough passthrough, BatchDecoder decoder ) {
+        while ( decoder.hasRemaining() ) {
+            int packetLength = decoder.readPacketLength();
+            if ( packetLength <= 0 || packetLength > decoder.getRemaining() ) {
+                // Let the normal handling deal with malformed data
+                return false;
+            }
+
+            if ( !passthrough.isPassthroughPacket( decoder.peekPacketId() ) ) {
+                return false;
+            }
+
+            decoder.skip( packetLength );
+        }
+
+        return true;
+    }
+
+    private long getRemainingInflateBudget() {
+        long budget = this.getInflateBudgetPerSecond();
+        if ( budget <= 0 ) {
+            return Long.MAX_VALUE;
+        }
+
+        long now = System.currentTimeMillis();
+        if ( now - this.inflateWindowStart >= 1000 ) {
+            this.inflateWindowStart = now;
+            this.inflatedInWindow = 0;
+        }
+
+        return budget - this.inflatedInWindow;
+    }
+
+    /**
+     * Get the maximum size a batch of this connection may have after decompression
+     *
+     * @return maximum size in bytes, 0 for no limit
+     */
+    protected int getMaxInflatedBatchSize() {
+        return 0;
+    }
+
+    /**
+     * Get the amount of bytes this connection may decompress per second
+     *
+     * @return budget in bytes, 0 for no limit
+     */
+    protected long getInflateBudgetPerSecond() {
+        return 0;
+    }
+
+    /**
+     * Get the passthrough which may forward batches of this connection without decoding the packets inside them
+     *
+     * @return the passthrough or null when every batch needs to be handled packet by packet
+     */
+    protected BatchPassthrough getBatchPassthrough() {
+        return null;
+    }
+
     /**
      * Little internal handler for packets
      *
@@ -111,6 +208,51 @@ public abstract class AbstractConnection {
      */
     protected abstract void handlePacket( PacketBuffer buffer, PacketReliability reliability, int orderingChannel, boolean batched );
 
+    /**
+     * Handle all packets which are currently waiting on the underlying RakNet connection
+     *
+     * @param limit The maximum amount of packets which should be handled in this call
+     * @return The amount of packets which have been handled
+     */
+    int readIncoming( int limit ) {
+        Connection connection = this.getConnection();
+
+        int handled = 0;
+        EncapsulatedPacket data;
+        while ( handled < limit && ( data = connection.receive() ) != null ) {
+            handled++;
+
+            PacketBuffer buffer = new PacketBuffer( data.getPacketData(), 0 );
+            if ( buffer.getRemaining() <= 0 ) {
+                // Malformed packet:
+                logger.warn( "Got 0 length packet" );
+                continue;
+            }
+
+            try {
+                this.handlePacket( buffer, data.getReliability(), data.getOrderingChannel(), false );
+            } catch ( Throwable t ) {
+                logger.error( "Could not handle packet", t );
+            }
+        }
+
+        return handled;
+    }
+
+    /**
+     * Check if the {@link ConnectionReaderPool} should keep reading from this connection
+     *
+     * @return true when there may be more packets to read, false when the connection has been closed
+     */
+    protected abstract boolean isReadable();
+
+    /**
+     * Get the RakNet connection which backs this connection
+     *
+     * @return The jRakNet Connection
+     */
+    public abstract Connection getConnection();
+
     public abstract void disconnect( String message );
 
     /**
@@ -129,6 +271,30 @@ public abstract class AbstractConnection {
         }
     }
 
+    /**
+     * Forwards batches which only contain packets the proxy doesn't need to look at
+     */
+    protected interface BatchPassthrough {
+
+        /**
+         * Check if the packet with the given id can be forwarded without being handled by the proxy
+         *
+         * @param packetId The id of the packet inside a batch
+         * @return true when the packet does not need to be decoded or rewritten
+         */
+        boolean isPassthroughPacket( byte packetId );
+
+        /**
+         * Forward a batch which only contains packets that didn't need to be handled
+         *
+         * @param compressed The array which holds the decrypted but still compressed payload of the batch
+         * @param offset     The offset at which the payload starts
+         * @param length     The length of the payload
+         */
+        void forward( byte[] compressed, int offset, int length );
+
+    }
+
     protected enum ConnectionState {
         HANDSHAKE,
         CONNECTED
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates batch packets into a buffer which gets reused for every batch read by the same thread and walks over
+ * the length prefixed packets inside of it.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+class BatchDecoder {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<BatchDecoder> DECODERS = new ThreadLocal<BatchDecoder>() {
+        @Override
+        protected BatchDecoder initialValue() {
+            return new BatchDecoder();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length;
+    private int position;
+    private PacketView view;
+
+    /**
+     * Get the decoder of the current thread. Its content is only valid until the next batch gets inflated
+     * on this thread.
+     *
+     * @return decoder of the current thread
+     */
+    static BatchDecoder get() {
+        return DECODERS.get();
+    }
+
+    /**
+     * Inflate a batch payload into this decoder and reset the read position. Inflating stops as soon as the
+     * payload gets bigger than the given maximum.
+     *
+     * @param input     The array which holds the zlib compressed payload
+     * @param offset    The offset at which the payload starts
+     * @param length    The length of the payload
+     * @param maxLength The maximum amount of bytes the inflated payload may have
+     * @return true when the payload has been inflated, false when it is bigger than maxLength
+     * @throws DataFormatException when the payload is not valid zlib data or it ends too early
+     */
+    boolean inflate( byte[] input, int offset, int length, int maxLength ) throws DataFormatException {
+        this.length = 0;
+        this.position = 0;
+
+        // Inflate one byte more than allowed to see if the payload is too big
+        int limit = maxLength < Integer.MAX_VALUE ? maxLength + 1 : maxLength;
+
+        Inflater inflater = ZlibPool.acquireInflater();
+        try {
+            inflater.setInput( input, offset, length );
+
+            while ( !inflater.finished() ) {
+                if ( this.length > maxLength ) {
+                    return false;
+                }
+
+                if ( this.length == this.buffer.length ) {
+                    this.buffer = Arrays.copyOf( this.buffer, (int) Math.min( (long) this.buffer.length << 1, limit ) );
+                }
+
+                int read = inflater.inflate( this.buffer, this.length, Math.min( this.buffer.length, limit ) - this.length );
+                if ( read == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    throw new DataFormatException( "Unexpected end of zlib input" );
+                }
+
+                this.length += read;
+            }
+        } finally {
+            ZlibPool.releaseInflater( inflater );
+        }
+
+        return this.length <= maxLength;
+    }
+
+    /**
+     * Get the length of the inflated payload
+     *
+     * @return length of the payload
+     */
+    int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Move the read position back to the first packet
+     */
+    void rewind() {
+        this.position = 0;
+    }
+
+    /**
+     * Check if there is data left which has not been read
+     *
+     * @return true when there is more data
+     */
+    boolean hasRemaining() {
+        return this.position < this.length;
+    }
+
+    /**
+     * Get the amount of inflated bytes which have not been read yet
+     *
+     * @return amount of bytes left
+     */
+    int getRemaining() {
+        return this.length - this.position;
+    }
+
+    /**
+     * Read the var int length prefix of the next packet
+     *
+     * @return the length of the next packet or -1 when the prefix is malformed
+     */
+    int readPacketLength() {
+        int value = 0;
+        for ( int shift = 0; shift < 35; shift += 7 ) {
+            if ( this.position >= this.length ) {
+                return -1;
+            }
+
+            byte b = this.buffer[this.position++];
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 ) {
+                return value;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the first byte of the next packet without moving the read position
+     *
+     * @return the packet id of the next packet
+     */
+    byte peekPacketId() {
+        return this.buffer[this.position];
+    }
+
+    /**
+     * Get a view of the next bytes and move the read position behind them. The view and its data are reused, they
+     * are only valid until the next call.
+     *
+     * @param amount The amount of bytes which should be read
+     * @return view of the bytes
+     */
+    PacketBuffer slice( int amount ) {
+        if ( this.view == null || this.view.getBuffer() != this.buffer ) {
+            this.view = new PacketView( this.buffer );
+        }
+
+        this.view.wrap( this.position, amount );
+        this.position += amount;
+        return this.view;
+    }
+
+    /**
+     * Move the read position
+     *
+     * @param amount The amount of bytes which should be skipped
+     */
+    void skip( int amount ) {
+        this.position += amount;
+    }
+
+}
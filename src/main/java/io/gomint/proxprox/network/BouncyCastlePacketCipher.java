@@ -0,0 +1,44 @@
+/*
+ *  Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ *  This code is licensed under the BSD license found in the
+ *  LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Pure Java cipher from BouncyCastle. It works on every JRE regardless of its crypto policy but is a lot
+ * slower than {@link JdkPacketCipher}.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class BouncyCastlePacketCipher implements PacketCipher {
+
+    private final BufferedBlockCipher cipher;
+
+    /**
+     * Create a new BouncyCastle backed cipher
+     *
+     * @param encryptor true when this cipher should encrypt, false when it should decrypt
+     * @param key       The AES key
+     * @param iv        The initial vector
+     */
+    public BouncyCastlePacketCipher( boolean encryptor, byte[] key, byte[] iv ) {
+        this.cipher = new BufferedBlockCipher( new CFBBlockCipher( new AESFastEngine(), 8 ) );
+        this.cipher.init( encryptor, new ParametersWithIV( new KeyParameter( key ), iv ) );
+    }
+
+    @Override
+    public int process( byte[] input, int inputOffset, int length, byte[] output, int outputOffset ) {
+        return this.cipher.processBytes( input, inputOffset, length, output, outputOffset );
+    }
+
+}
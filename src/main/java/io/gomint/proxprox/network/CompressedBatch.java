@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+
+/**
+ * A batch packet whose payload has already been compressed. The {@link PostProcessWorker} only encrypts it and sends
+ * it as its own batch, there is room for the checksum behind its position so this can be done in place.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+class CompressedBatch extends PacketBuffer {
+
+    /**
+     * Copy a compressed payload into a new batch packet
+     *
+     * @param compressed The array which holds the zlib compressed payload of the batch
+     * @param offset     The offset at which the payload starts
+     * @param length     The length of the payload
+     */
+    CompressedBatch( byte[] compressed, int offset, int length ) {
+        super( new byte[1 + length + EncryptionHandler.CHECKSUM_LENGTH], 0 );
+
+        byte[] data = this.getBuffer();
+        data[0] = Protocol.PACKET_BATCH;
+        System.arraycopy( compressed, offset, data, 1, length );
+        this.skip( 1 + length );
+    }
+
+}
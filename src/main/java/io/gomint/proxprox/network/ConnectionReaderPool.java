@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads and dispatches the packets of all RakNet connections on a fixed amount of shard threads. Connections
+ * are assigned to a shard by a GUID so every packet of a connection is handled by the same thread and thus
+ * stays in order. Up- and downstream of the same player use the upstream GUID so they share a shard.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class ConnectionReaderPool {
+
+    private static final Logger logger = LoggerFactory.getLogger( ConnectionReaderPool.class );
+
+    // Amount of packets one connection may handle per pass so a busy connection can't starve the others
+    private static final int PACKETS_PER_PASS = 64;
+
+    // Amount of tasks a shard runs per pass so queued tasks can't starve the connections
+    private static final int TASKS_PER_PASS = 256;
+
+    private final Shard[] shards;
+    private final AtomicBoolean running = new AtomicBoolean( true );
+
+    // Idle shards sleep at most this long before polling their connections again
+    private final long idleParkNanos;
+
+    /**
+     * Create and start a new reader pool
+     *
+     * @param shardCount     The amount of shards (threads) which should be used
+     * @param idleParkMicros The time in microseconds an idle shard sleeps before it polls its connections again
+     * @param threadFactory  The factory which creates the shard threads
+     */
+    public ConnectionReaderPool( int shardCount, long idleParkMicros, ThreadFactory threadFactory ) {
+        this.idleParkNanos = TimeUnit.MICROSECONDS.toNanos( Math.max( 1, idleParkMicros ) );
+        this.shards = new Shard[Math.max( 1, shardCount )];
+        for ( int i = 0; i < this.shards.length; i++ ) {
+            this.shards[i] = new Shard( threadFactory );
+        }
+
+        for ( Shard shard : this.shards ) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Register a connection so its packets get read by the shard which owns the given GUID
+     *
+     * @param guid       The GUID which selects the shard
+     * @param connection The connection which should be read
+     */
+    public void register( long guid, AbstractConnection connection ) {
+        Shard shard = this.shard( guid );
+        shard.connections.add( connection );
+        LockSupport.unpark( shard.thread );
+    }
+
+    /**
+     * Wake up the shard which owns the given GUID so it polls its connections right away
+     *
+     * @param guid The GUID which selects the shard
+     */
+    public void wakeup( long guid ) {
+        LockSupport.unpark( this.shard( guid ).thread );
+    }
+
+    /**
+     * Run a task on the shard which owns the given GUID. Tasks of the same GUID run in the order they have been
+     * submitted and never concurrently to the packets of connections registered with that GUID.
+     *
+     * @param guid The GUID which selects the shard
+     * @param task The task which should be run
+     */
+    public void execute( long guid, Runnable task ) {
+        Shard shard = this.shard( guid );
+        shard.tasks.offer( task );
+        LockSupport.unpark( shard.thread );
+    }
+
+    /**
+     * Get the amount of shards this pool uses
+     *
+     * @return amount of shards
+     */
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    /**
+     * Get the time an idle shard sleeps before it polls its connections again
+     *
+     * @return park time in microseconds
+     */
+    public long getIdleParkMicros() {
+        return TimeUnit.NANOSECONDS.toMicros( this.idleParkNanos );
+    }
+
+    /**
+     * Get the amount of times a shard woke up and found nothing to read
+     *
+     * @return amount of wakeups without work over all shards
+     */
+    public long getIdleWakeups() {
+        long wakeups = 0;
+        for ( Shard shard : this.shards ) {
+            wakeups += shard.idleWakeups;
+        }
+
+        return wakeups;
+    }
+
+    /**
+     * Stop all shard threads
+     */
+    public void shutdown() {
+        this.running.set( false );
+
+        for ( Shard shard : this.shards ) {
+            LockSupport.unpark( shard.thread );
+        }
+    }
+
+    private Shard shard( long guid ) {
+        int hash = (int) ( guid ^ ( guid >>> 32 ) );
+        return this.shards[( hash & Integer.MAX_VALUE ) % this.shards.length];
+    }
+
+    private final class Shard implements Runnable {
+
+        private final List<AbstractConnection> connections = new CopyOnWriteArrayList<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        // Only written by the shard thread
+        private volatile long idleWakeups;
+        private boolean parked;
+
+        private Shard( ThreadFactory threadFactory ) {
+            this.thread = threadFactory.newThread( this );
+        }
+
+        @Override
+        public void run() {
+            while ( running.get() ) {
+                boolean didWork = this.runTasks();
+
+                for ( AbstractConnection connection : this.connections ) {
+                    if ( !connection.isReadable() ) {
+                        this.connections.remove( connection );
+                        continue;
+                    }
+
+                    if ( connection.readIncoming( PACKETS_PER_PASS ) > 0 ) {
+                        didWork = true;
+                    }
+                }
+
+                if ( didWork ) {
+                    this.parked = false;
+                } else {
+                    if ( this.parked ) {
+                        this.idleWakeups++;
+                    }
+
+                    this.parked = true;
+                    LockSupport.parkNanos( this, idleParkNanos );
+                }
+            }
+        }
+
+        private boolean runTasks() {
+            Runnable task;
+            int ran = 0;
+            while ( ran < TASKS_PER_PASS && ( task = this.tasks.poll() ) != null ) {
+                ran++;
+
+                try {
+                    task.run();
+                } catch ( Throwable throwable ) {
+                    logger.error( "Task on reader shard failed", throwable );
+                }
+            }
+
+            return ran > 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+import io.gomint.proxprox.api.network.Packet;
+import io.gomint.proxprox.network.protocol.PacketChangeDimension;
+import io.gomint.proxprox.network.protocol.PacketFullChunkData;
+import io.gomint.proxprox.network.protocol.PacketPlayState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packets which show the client a loading screen while it switches servers. They are the same for every player
+ * so they get built and compressed once and only need to be encrypted per player.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+class DimensionSwitch {
+
+    /**
+     * Time between two empty chunks so the client is able to keep up
+     */
+    static final long CHUNK_INTERVAL_MILLIS = 5;
+
+    private static final byte[] EMPTY_CHUNK = new byte[1 + ( 16 * 16 * 2 ) + ( 16 * 16 ) + 2];
+
+    /**
+     * Batch which moves the client into the other dimension, the client needs to be moved up afterwards
+     */
+    static final byte[] START = PostProcessWorker.compress( serialize(
+            new PacketChangeDimension( (byte) 0 ),
+            new PacketPlayState( PacketPlayState.PlayState.SPAWN ),
+            new PacketChangeDimension( (byte) 1 ),
+            new PacketPlayState( PacketPlayState.PlayState.SPAWN ) ) );
+
+    /**
+     * Batches with one empty chunk each around the spawn
+     */
+    static final byte[][] EMPTY_CHUNKS = createEmptyChunks();
+
+    /**
+     * Batch which moves the client back into the overworld. There needs to be one additional spawn but the
+     * downstream server sends one so its ok.
+     */
+    static final byte[] END = PostProcessWorker.compress( serialize(
+            new PacketChangeDimension( (byte) 1 ),
+            new PacketPlayState( PacketPlayState.PlayState.SPAWN ),
+            new PacketChangeDimension( (byte) 0 ) ) );
+
+    private static byte[][] createEmptyChunks() {
+        List<byte[]> chunks = new ArrayList<>();
+        for ( int x = -3; x < 3; x++ ) {
+            for ( int z = -3; z < 3; z++ ) {
+                PacketFullChunkData chunk = new PacketFullChunkData();
+                chunk.setChunkX( x );
+                chunk.setChunkZ( z );
+                chunk.setChunkData( EMPTY_CHUNK );
+                chunks.add( PostProcessWorker.compress( serialize( chunk ) ) );
+            }
+        }
+
+        return chunks.toArray( new byte[chunks.size()][] );
+    }
+
+    private static List<PacketBuffer> serialize( Packet... packets ) {
+        List<PacketBuffer> buffers = new ArrayList<>( packets.length );
+        for ( Packet packet : packets ) {
+            PacketBuffer buffer = new PacketBuffer( 64 );
+            buffer.writeByte( packet.getId() );
+            buffer.writeShort( (short) 0 );
+            packet.serialize( buffer );
+            buffers.add( buffer );
+        }
+
+        return buffers;
+    }
+
+}
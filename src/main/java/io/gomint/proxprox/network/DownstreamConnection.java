@@ -10,20 +10,28 @@ package io.gomint.proxprox.network;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.gomint.jraknet.*;
 import io.gomint.proxprox.ProxProx;
+import io.gomint.proxprox.api.ChatColor;
 import io.gomint.proxprox.api.entity.Server;
 import io.gomint.proxprox.api.event.PlayerSwitchedEvent;
 import io.gomint.proxprox.api.event.ServerKickedPlayerEvent;
 import io.gomint.proxprox.api.network.Channel;
 import io.gomint.proxprox.api.network.Packet;
 import io.gomint.proxprox.api.network.PacketSender;
+import io.gomint.proxprox.config.ServerConfig;
 import io.gomint.proxprox.jwt.JwtSignatureException;
 import io.gomint.proxprox.jwt.JwtToken;
 import io.gomint.proxprox.network.protocol.*;
 import io.gomint.proxprox.network.protocol.type.ResourceResponseStatus;
 import io.gomint.proxprox.network.tcp.ConnectionHandler;
 import io.gomint.proxprox.network.tcp.Initializer;
+import io.gomint.proxprox.network.tcp.MultiplexedLink;
+import io.gomint.proxprox.network.tcp.StreamConnection;
 import io.gomint.proxprox.network.tcp.protocol.WrappedMCPEPacket;
 import io.gomint.proxprox.util.EntityRewriter;
+import io.gomint.proxprox.util.LongSet;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import org.slf4j.Logger;
@@ -32,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import java.net.SocketException;
 import java.security.Key;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -46,12 +55,14 @@ public class DownstreamConnection extends AbstractConnection implements Server,
     // Needed connection data to reach the server
     private String ip;
     private int port;
+    @Getter
+    private final boolean trusted;
 
     // Client connection
     private ClientSocket connection;
-    private Thread connectionReadThread;
     private PostProcessWorker postProcessWorker;
-    private ConnectionHandler tcpConnection;
+    private SendQueue sendQueue;
+    private StreamConnection tcpConnection;
     private boolean manualClose;
 
     // Upstream
@@ -61,7 +72,7 @@ public class DownstreamConnection extends AbstractConnection implements Server,
     private ProxProx proxProx;
 
     // Entities
-    private Set<Long> spawnedEntities = new HashSet<>();
+    private LongSet spawnedEntities = new LongSet( 64 );
     @Getter
     private float spawnX;
     @Getter
@@ -77,6 +88,35 @@ public class DownstreamConnection extends AbstractConnection implements Server,
     @Getter
     private int gamemode;
 
+    // Forwards batches of packets the proxy doesn't touch to the client
+    private final BatchPassthrough batchPassthrough = new BatchPassthrough() {
+        @Override
+        public boolean isPassthroughPacket( byte packetId ) {
+            switch ( packetId ) {
+                case Protocol.PACKET_BATCH:
+                case Protocol.PACKET_CUSTOM_PROTOCOL:
+                case Protocol.PACKET_START_GAME:
+                case Protocol.REMOVE_ENTITY_PACKET:
+                case Protocol.ADD_ITEM_ENTITY:
+                case Protocol.ADD_ENTITY_PACKET:
+                case Protocol.ADD_PLAYER_PACKET:
+                case Protocol.PACKET_ENCRYPTION_REQUEST:
+                case Protocol.PACKET_PLAY_STATE:
+                case Protocol.PACKET_RESOURCEPACK_INFO:
+                case Protocol.DISONNECT_PACKET:
+                    return false;
+
+                default:
+                    return !upstreamConnection.getEntityRewriter().rewritesServerToClient( packetId );
+            }
+        }
+
+        @Override
+        public void forward( byte[] compressed, int offset, int length ) {
+            upstreamConnection.sendCompressedBatch( compressed, offset, length );
+        }
+    };
+
     /**
      * Create a new AbstractConnection to a server.
      *
@@ -92,52 +132,67 @@ public class DownstreamConnection extends AbstractConnection implements Server,
         this.ip = ip;
         this.port = port;
 
+        // Only the configured servers can be trusted
+        ServerConfig defaultServer = proxProx.getConfig().getDefaultServer();
+        this.trusted = defaultServer.isTrusted() && defaultServer.getIp().equals( ip ) && defaultServer.getPort() == port;
+    }
+
+    /**
+     * Start connecting to the server. {@link UpstreamConnection#onDownStreamConnected(DownstreamConnection)} gets
+     * called once the connection is ready.
+     */
+    void connect() {
+        // Nothing in here waits for the server, the login timeout catches servers which never answer
+        int connectTimeout = this.proxProx.getConfig().getConnectTimeoutMillis();
+        int loginTimeout = this.proxProx.getConfig().getLoginTimeoutMillis();
+        if ( loginTimeout > 0 ) {
+            this.proxProx.getFlushScheduler().schedule( new Runnable() {
+                @Override
+                public void run() {
+                    if ( upstreamConnection.getPendingDownStream() == DownstreamConnection.this ) {
+                        connectFailed( "login timed out" );
+                    }
+                }
+            }, loginTimeout, TimeUnit.MILLISECONDS );
+        }
+
         // Check if we use UDP or TCP for downstream connections
-        if ( proxProx.getConfig().isUseTCP() ) {
-            try {
-                io.netty.bootstrap.Bootstrap bootstrap = Initializer.buildBootstrap( "DownStream " + this.upstreamConnection.getUUID() + " -> " + this.ip + ":" + this.port, new Consumer<ConnectionHandler>() {
+        if ( this.proxProx.getConfig().isUseTCP() ) {
+            if ( this.proxProx.getConfig().isMultiplexTCP() ) {
+                // Share the link to the server with all other players on it
+                MultiplexedLink.openSession( this.ip, this.port, connectTimeout, new Consumer<StreamConnection>() {
                     @Override
-                    public void accept( ConnectionHandler connectionHandler ) {
-                        DownstreamConnection.this.tcpConnection = connectionHandler;
-
-                        connectionHandler.onData( new Consumer<PacketBuffer>() {
-                            @Override
-                            public void accept( PacketBuffer buffer ) {
-                                handlePacket( buffer, PacketReliability.RELIABLE_ORDERED, 0, true ); // There are no batches in TCP
-                            }
-                        } );
-
-                        connectionHandler.whenDisconnected( new Consumer<Void>() {
-                            @Override
-                            public void accept( Void aVoid ) {
-                                if ( upstreamConnection.isConnected() ) {
-                                    logger.info( "Disconnected downstream..." );
-                                    if ( !DownstreamConnection.this.manualClose ) {
-                                        DownstreamConnection.this.close( true );
-
-                                        // Check if we need to disconnect upstream
-                                        if ( DownstreamConnection.this.equals( upstreamConnection.getDownStream() ) ) {
-                                            if ( upstreamConnection.getPendingDownStream() != null || upstreamConnection.connectToLastKnown() ) {
-                                                return;
-                                            } else {
-                                                upstreamConnection.disconnect( "The Server has gone down" );
-                                            }
-                                        } else {
-                                            upstreamConnection.resetPendingDownStream();
-                                        }
-                                    }
-                                }
-                            }
-                        } );
-
-                        DownstreamConnection.this.upstreamConnection.onDownStreamConnected( DownstreamConnection.this );
+                    public void accept( StreamConnection streamConnection ) {
+                        setupStream( streamConnection );
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept( Throwable throwable ) {
+                        connectFailed( throwable != null ? throwable.getMessage() : "link closed" );
                     }
                 } );
-                bootstrap.connect( this.ip, this.port ).sync();
-            } catch ( InterruptedException e ) {
-                e.printStackTrace();
-                this.upstreamConnection.resetPendingDownStream();
+                return;
             }
+
+            io.netty.bootstrap.Bootstrap bootstrap = Initializer.buildBootstrap( "DownStream " + this.upstreamConnection.getUUID() + " -> " + this.ip + ":" + this.port, new Consumer<ConnectionHandler>() {
+                @Override
+                public void accept( ConnectionHandler connectionHandler ) {
+                    setupStream( connectionHandler );
+                }
+            } );
+
+            if ( connectTimeout > 0 ) {
+                bootstrap.option( ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout );
+            }
+
+            bootstrap.connect( this.ip, this.port ).addListener( new ChannelFutureListener() {
+                @Override
+                public void operationComplete( ChannelFuture channelFuture ) throws Exception {
+                    if ( !channelFuture.isSuccess() ) {
+                        connectFailed( String.valueOf( channelFuture.cause() ) );
+                    }
+                }
+            } );
         } else {
             this.connection = new ClientSocket();
             this.connection.setMojangModificationEnabled( true );
@@ -148,29 +203,28 @@ public class DownstreamConnection extends AbstractConnection implements Server,
                     logger.debug( "Got socketEvent: " + socketEvent.getType().name() );
                     switch ( socketEvent.getType() ) {
                         case CONNECTION_ATTEMPT_SUCCEEDED:
-                            // We got accepted *yay*
-                            DownstreamConnection.this.setup();
-                            DownstreamConnection.this.upstreamConnection.onDownStreamConnected( DownstreamConnection.this );
+                            // We got accepted *yay*, the switch runs on the reader thread of the player which owns its state
+                            DownstreamConnection.this.upstreamConnection.execute( new Runnable() {
+                                @Override
+                                public void run() {
+                                    DownstreamConnection.this.setup();
+                                    DownstreamConnection.this.upstreamConnection.onDownStreamConnected( DownstreamConnection.this );
+                                }
+                            } );
+                            break;
+
+                        case CONNECTION_ATTEMPT_FAILED:
+                            connectFailed( "connection attempt failed" );
                             break;
 
                         case CONNECTION_CLOSED:
                         case CONNECTION_DISCONNECTED:
-                            logger.info( "Disconnected downstream..." );
-                            if ( !DownstreamConnection.this.manualClose ) {
-                                DownstreamConnection.this.close( true );
-
-                                // Check if we need to disconnect upstream
-                                if ( DownstreamConnection.this.equals( upstreamConnection.getDownStream() ) ) {
-                                    if ( upstreamConnection.getPendingDownStream() != null || upstreamConnection.connectToLastKnown() ) {
-                                        return;
-                                    } else {
-                                        upstreamConnection.disconnect( "The Server has gone down" );
-                                    }
-                                } else {
-                                    upstreamConnection.resetPendingDownStream();
+                            DownstreamConnection.this.upstreamConnection.execute( new Runnable() {
+                                @Override
+                                public void run() {
+                                    serverDisconnected();
                                 }
-                            }
-
+                            } );
                             break;
 
                         default:
@@ -189,41 +243,139 @@ public class DownstreamConnection extends AbstractConnection implements Server,
         }
     }
 
-    @Override
-    protected void setup() {
-        super.setup();
-
-        this.postProcessWorker = new PostProcessWorker( this.getConnection() );
-        this.connectionReadThread = this.proxProx.getNewServerConnectionThread( new Runnable() {
+    /**
+     * The server could not be reached or didn't finish the login in time. Players who still are on another server
+     * stay there, all others get sent to the last known server or get disconnected. The fallback fires events and
+     * opens new connections so it runs on the reader thread of the player instead of the thread which noticed
+     * the failure.
+     *
+     * @param reason The reason why the connection failed
+     */
+    private void connectFailed( final String reason ) {
+        this.upstreamConnection.execute( new Runnable() {
             @Override
             public void run() {
-                // Give a better name
-                Thread.currentThread().setName( "DownStream " + upstreamConnection.getUUID() + " -> " + ip + ":" + port + " [Packet Read/Rewrite]" );
-
-                logger.debug( "Connection status: " + connection.getConnection().isConnected() );
-                while ( connection.getConnection() != null && connection.getConnection().isConnected() ) {
-                    EncapsulatedPacket data = connection.getConnection().receive();
-                    if ( data == null ) {
-                        try {
-                            Thread.sleep( 10 );
-                        } catch ( InterruptedException e ) {
-                            e.printStackTrace();
-                        }
-
-                        continue;
+                handleConnectFailed( reason );
+            }
+        } );
+    }
+
+    private void handleConnectFailed( String reason ) {
+        if ( this.manualClose ) {
+            return;
+        }
+
+        logger.warn( "Could not connect to " + this.ip + ":" + this.port + ": " + reason );
+        this.close( false );
+
+        if ( this.upstreamConnection.getPendingDownStream() != this ) {
+            return;
+        }
+
+        this.upstreamConnection.resetPendingDownStream();
+        if ( this.upstreamConnection.getDownStream() != null ) {
+            this.upstreamConnection.sendMessage( ChatColor.RED + "Could not connect to " + this.ip + ":" + this.port );
+        } else if ( !this.upstreamConnection.connectToLastKnown() ) {
+            this.upstreamConnection.disconnect( "Could not connect to the server" );
+        }
+    }
+
+    private void setupStream( StreamConnection streamConnection ) {
+        this.tcpConnection = streamConnection;
+
+        // The thread of the stream only hands the data over, it gets handled on the reader thread of the player
+        // so a link shared by many players doesn't handle all of them one after another
+        streamConnection.onData( new Consumer<PacketBuffer>() {
+            @Override
+            public void accept( final PacketBuffer buffer ) {
+                upstreamConnection.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        handlePacket( buffer, PacketReliability.RELIABLE_ORDERED, 0, true ); // There are no batches in TCP
                     }
+                } );
+            }
+        } );
 
-                    PacketBuffer buffer = new PacketBuffer( data.getPacketData(), 0 );
-                    if ( buffer.getRemaining() <= 0 ) {
-                        // Malformed packet:
-                        return;
+        // The disconnect is handed over the same way so it can't overtake data which has not been handled yet
+        streamConnection.whenDisconnected( new Consumer<Void>() {
+            @Override
+            public void accept( Void aVoid ) {
+                upstreamConnection.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        serverDisconnected();
                     }
+                } );
+            }
+        } );
 
-                    handlePacket( buffer, data.getReliability(), data.getOrderingChannel(), false );
-                }
+        // Switching the downstream changes state which the reader thread of the player owns
+        this.upstreamConnection.execute( new Runnable() {
+            @Override
+            public void run() {
+                upstreamConnection.onDownStreamConnected( DownstreamConnection.this );
             }
         } );
-        this.connectionReadThread.start();
+    }
+
+    /**
+     * The connection to the server has been closed. This runs on the reader thread of the player.
+     */
+    private void serverDisconnected() {
+        if ( !this.upstreamConnection.isConnected() ) {
+            return;
+        }
+
+        logger.info( "Disconnected downstream..." );
+        if ( !this.manualClose ) {
+            this.close( true );
+
+            // Check if we need to disconnect upstream
+            if ( this.equals( this.upstreamConnection.getDownStream() ) ) {
+                if ( this.upstreamConnection.getPendingDownStream() == null && !this.upstreamConnection.connectToLastKnown() ) {
+                    this.upstreamConnection.disconnect( "The Server has gone down" );
+                }
+            } else {
+                this.upstreamConnection.resetPendingDownStream();
+            }
+        }
+    }
+
+    /**
+     * Schedule sending of all queued packets. This gets called every tick by the upstream connection.
+     */
+    void update() {
+        if ( this.sendQueue != null && !this.sendQueue.isEmpty() ) {
+            this.sendQueue.schedule();
+        }
+    }
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        this.postProcessWorker = new PostProcessWorker( this.getConnection() );
+        this.sendQueue = new SendQueue( this.proxProx, this.postProcessWorker, null );
+
+        // Read on the same shard as our upstream so all packets of one player stay on one thread
+        this.proxProx.getConnectionReaderPool().register( this.upstreamConnection.getConnection().getGuid(), this );
+    }
+
+    @Override
+    protected boolean isReadable() {
+        return !this.manualClose && this.connection.getConnection() != null && this.connection.getConnection().isConnected();
+    }
+
+    @Override
+    protected BatchPassthrough getBatchPassthrough() {
+        // Only the server the player currently plays on can skip the proxy, everything else is still in login / switch
+        if ( this.state == ConnectionState.CONNECTED && this.upstreamConnection.getDownStream() == this
+                && this.upstreamConnection.getEntityRewriter() != null ) {
+            return this.batchPassthrough;
+        }
+
+        return null;
     }
 
     @Override
@@ -237,7 +389,7 @@ public class DownstreamConnection extends AbstractConnection implements Server,
         this.upstreamConnection.getDebugger().addPacket( this.ip + ":" + this.port, "Proxy", packetId, buffer );
 
         // Check if we are in custom protocol mode :D
-        if ( packetId == (byte) 0xFF ) {
+        if ( packetId == Protocol.PACKET_CUSTOM_PROTOCOL ) {
             PacketCustomProtocol packetCustomProtocol = new PacketCustomProtocol();
             packetCustomProtocol.deserialize( buffer );
 
@@ -348,6 +500,10 @@ public class DownstreamConnection extends AbstractConnection implements Server,
                 PacketEncryptionRequest packet = new PacketEncryptionRequest();
                 packet.deserialize( buffer );
 
+                if ( this.trusted ) {
+                    logger.info( "Trusted server " + this.ip + ":" + this.port + " still wants encryption, it may not support skipping it" );
+                }
+
                 // We need to verify the JWT request
                 JwtToken token = JwtToken.parse( packet.getJwt() );
                 String keyDataBase64 = (String) token.getHeader().getProperty( "x5u" );
@@ -365,6 +521,8 @@ public class DownstreamConnection extends AbstractConnection implements Server,
                 this.encryptionHandler = new EncryptionHandler();
                 this.encryptionHandler.setServerPublicKey( keyDataBase64 );
                 this.encryptionHandler.beginServersideEncryption( Base64.getDecoder().decode( (String) token.getClaim( "salt" ) ) );
+                // Everything which has been queued until now needs to go out unencrypted
+                this.sendQueue.flush();
                 this.postProcessWorker.setEncryptionHandler( this.encryptionHandler );
 
                 // Tell the server that we are ready to receive encrypted packets from now on:
@@ -453,16 +611,16 @@ public class DownstreamConnection extends AbstractConnection implements Server,
         if ( this.connection != null ) {
             this.connection.close();
         }
-
-        if ( this.connectionReadThread != null ) {
-            this.connectionReadThread.interrupt();
-        }
     }
 
     public void disconnect( String reason ) {
         if ( this.connection != null && this.connection.getConnection() != null ) {
             logger.info( "Disconnecting DownStream for " + this.upstreamConnection.getUUID() );
 
+            if ( this.sendQueue != null ) {
+                this.sendQueue.flush();
+            }
+
             this.connection.getConnection().disconnect( reason );
             this.connection.close();
         } else if ( this.tcpConnection != null ) {
@@ -485,16 +643,17 @@ public class DownstreamConnection extends AbstractConnection implements Server,
      *
      * @return The connection to the server
      */
+    @Override
     public Connection getConnection() {
         return connection.getConnection();
     }
 
     /**
-     * Return a collection of all currently spawned entities
+     * Return a set of all currently spawned entities
      *
-     * @return
+     * @return set of client side entity ids
      */
-    public Set<Long> getSpawnedEntities() {
+    public LongSet getSpawnedEntities() {
         return this.spawnedEntities;
     }
 
@@ -514,7 +673,7 @@ public class DownstreamConnection extends AbstractConnection implements Server,
             this.tcpConnection.send( mcpePacket );
         } else if ( this.connection != null ) {
             if ( !( packet instanceof PacketBatch ) ) {
-                this.postProcessWorker.sendPacket( buffer );
+                this.sendQueue.add( buffer );
             } else {
                 this.getConnection().send( PacketReliability.RELIABLE_ORDERED, packet.orderingChannel(), buffer.getBuffer(), 0, buffer.getPosition() );
             }
@@ -525,17 +684,19 @@ public class DownstreamConnection extends AbstractConnection implements Server,
         this.upstreamConnection.getDebugger().addPacket( "DownStream", this.ip + ":" + this.port, packetId, buffer );
 
         if ( this.tcpConnection != null ) {
-            PacketBuffer newBuffer = new PacketBuffer( 64 );
-            newBuffer.writeByte( packetId );
-            newBuffer.writeShort( (short) 0 );
-
-            byte[] data = new byte[buffer.getRemaining()];
-            buffer.readBytes( data );
-
-            newBuffer.writeBytes( data );
-
             WrappedMCPEPacket mcpePacket = new WrappedMCPEPacket();
-            mcpePacket.setBuffer( newBuffer );
+            int length = buffer.getRemaining();
+            if ( buffer instanceof PacketView ) {
+                // The array of a view gets reused as soon as the packet has been handled
+                byte[] data = new byte[length];
+                System.arraycopy( buffer.getBuffer(), buffer.getPosition(), data, 0, length );
+                mcpePacket.setPayload( packetId, data, 0, length );
+            } else {
+                // The buffer belongs to this packet only, the encoder copies the data straight into the socket buffer
+                mcpePacket.setPayload( packetId, buffer.getBuffer(), buffer.getPosition(), length );
+            }
+
+            buffer.skip( length );
             this.tcpConnection.send( mcpePacket );
         } else {
             byte[] data = new byte[buffer.getRemaining()];
@@ -545,7 +706,7 @@ public class DownstreamConnection extends AbstractConnection implements Server,
             packetBuffer.writeByte( packetId );
             packetBuffer.writeShort( (short) 0 );
             packetBuffer.writeBytes( data );
-            this.postProcessWorker.sendPacket( packetBuffer );
+            this.sendQueue.add( packetBuffer );
         }
     }
 
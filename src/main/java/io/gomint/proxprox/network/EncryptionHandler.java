@@ -9,29 +9,17 @@ package io.gomint.proxprox.network;
 
 import lombok.Getter;
 import lombok.Setter;
-import org.bouncycastle.crypto.BufferedBlockCipher;
-import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.engines.AESFastEngine;
-import org.bouncycastle.crypto.modes.CFBBlockCipher;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.KeyAgreement;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.*;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.Base64;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles all encryption needs of the Minecraft Pocket Edition Protocol (ECDH Key Exchange and
@@ -42,30 +30,24 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class EncryptionHandler {
 
-    private static KeyFactory ECDH_KEY_FACTORY;
     public static KeyPair PROXY_KEY_PAIR;
 
     static {
-        // Initialize KeyFactory:
+        generateEncryptionKeys();
+
+        // Fail fast when BouncyCastle can't do ECDH
         try {
-            ECDH_KEY_FACTORY = KeyFactory.getInstance( "ECDH", "BC" );
-        } catch ( NoSuchAlgorithmException e ) {
+            HandshakeMaterial.prepare();
+        } catch ( IllegalStateException e ) {
             e.printStackTrace();
-            System.err.println( "Could not find ECDH Key Factory - please ensure that you have installed the latest version of BouncyCastle" );
-            System.exit( -1 );
-        } catch ( NoSuchProviderException e ) {
-            e.printStackTrace();
-            System.err.println( "Could not find BouncyCastle Key Provider - please ensure that you have installed BouncyCastle properly" );
+            System.err.println( e.getMessage() );
             System.exit( -1 );
         }
-
-        generateEncryptionKeys();
     }
 
     public static ECPublicKey createPublicKey( String base64 ) {
         try {
-            return (ECPublicKey) ECDH_KEY_FACTORY.generatePublic( new X509EncodedKeySpec( Base64.getDecoder()
-                    .decode( base64 ) ) );
+            return (ECPublicKey) HandshakeMaterial.decodePublicKey( Base64.getDecoder().decode( base64 ) );
         } catch ( InvalidKeySpecException e ) {
             e.printStackTrace();
             return null;
@@ -105,14 +87,31 @@ public class EncryptionHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger( EncryptionHandler.class );
 
-    // Packet counters
-    private AtomicLong sendingCounter = new AtomicLong( 0 );
-    private AtomicLong receiveCounter = new AtomicLong( 0 );
+    // Cipher backend, BouncyCastle is used when the JDK can't provide AES-CFB8
+    private static volatile boolean useJdkCipher = true;
+
+    /**
+     * Select which cipher backend new encryption handlers should use
+     *
+     * @param jdkCipher true when the JDK cipher should be used, false when BouncyCastle should always be used
+     */
+    public static void setUseJdkCipher( boolean jdkCipher ) {
+        useJdkCipher = jdkCipher;
+    }
+
+    /**
+     * Amount of checksum bytes which get appended to every encrypted batch
+     */
+    public static final int CHECKSUM_LENGTH = 8;
+
+    // Packet counters and digests
+    private final Checksum sendingChecksum = new Checksum();
+    private final Checksum receiveChecksum = new Checksum();
 
     // Client Side:
     private ECPublicKey clientPublicKey;
-    private BufferedBlockCipher clientEncryptor;
-    private BufferedBlockCipher clientDecryptor;
+    private PacketCipher clientEncryptor;
+    private PacketCipher clientDecryptor;
 
     // Data for packet and checksum calculations
     @Getter
@@ -122,10 +121,10 @@ public class EncryptionHandler {
 
     // Server side
     private ECPublicKey serverPublicKey;
-    private BufferedBlockCipher serverEncryptor;
-    private BufferedBlockCipher serverDecryptor;
-    private AtomicLong serverSendCounter = new AtomicLong( 0 );
-    private AtomicLong serverReceiveCounter = new AtomicLong( 0 );
+    private PacketCipher serverEncryptor;
+    private PacketCipher serverDecryptor;
+    private final Checksum serverSendChecksum = new Checksum();
+    private final Checksum serverReceiveChecksum = new Checksum();
     private byte[] serverKey;
 
     /**
@@ -181,34 +180,29 @@ public class EncryptionHandler {
         return ( this.serverEncryptor != null && this.serverDecryptor != null );
     }
 
-    public byte[] decryptInputFromServer( byte[] input ) {
-        byte[] output = this.processCipher( this.serverDecryptor, input );
-        if ( output == null ) {
-            return null;
-        }
-
-        byte[] outputChunked = new byte[input.length - 8];
-
-        System.arraycopy( output, 0, outputChunked, 0, outputChunked.length );
-
-        byte[] hashBytes = calcHash( outputChunked, this.serverKey, this.serverReceiveCounter );
-        for ( int i = output.length - 8; i < output.length; i++ ) {
-            if ( hashBytes[i - ( output.length - 8 )] != output[i] ) {
-                return null;
-            }
-        }
-
-        return outputChunked;
+    /**
+     * Decrypt data from the server in place
+     *
+     * @param data   The array which holds the RAW packet data from RakNet
+     * @param offset The offset at which the packet data starts
+     * @param length The length of the packet data including the checksum
+     * @return Either -1 when the data was corrupted or the length of the decrypted data without the checksum
+     */
+    public int decryptFromServer( byte[] data, int offset, int length ) {
+        return this.decrypt( this.serverDecryptor, this.serverReceiveChecksum, this.serverKey, data, offset, length );
     }
 
-    public byte[] encryptInputForServer( byte[] input ) {
-        byte[] hashBytes = calcHash( input, this.serverKey, this.serverSendCounter );
-        byte[] finalInput = new byte[hashBytes.length + input.length];
-
-        System.arraycopy( input, 0, finalInput, 0, input.length );
-        System.arraycopy( hashBytes, 0, finalInput, input.length, 8 );
-
-        return this.processCipher( this.serverEncryptor, finalInput );
+    /**
+     * Encrypt data for the server in place. The checksum gets written behind the data so the array needs to have
+     * {@link #CHECKSUM_LENGTH} free bytes after it.
+     *
+     * @param data   The array which holds the zlib compressed data
+     * @param offset The offset at which the data starts
+     * @param length The length of the data
+     * @return the length of the encrypted data including the checksum
+     */
+    public int encryptForServer( byte[] data, int offset, int length ) {
+        return this.encrypt( this.serverEncryptor, this.serverSendChecksum, this.serverKey, data, offset, length );
     }
 
     /**
@@ -223,8 +217,7 @@ public class EncryptionHandler {
         }
 
         // Generate a random salt:
-        SecureRandom secureRandom = new SecureRandom();
-        this.clientSalt = secureRandom.generateSeed( 16 );
+        this.clientSalt = HandshakeMaterial.generateSalt( 16 );
 
         // Generate shared secret from ECDH keys:
         byte[] secret = this.generateECDHSecret( PROXY_KEY_PAIR.getPrivate(), this.clientPublicKey );
@@ -243,48 +236,30 @@ public class EncryptionHandler {
     }
 
     /**
-     * Decrypt data from the clients
+     * Decrypt data from the client in place
      *
-     * @param input RAW packet data from RakNet
-     * @return Either null when the data was corrupted or the decrypted data
+     * @param data   The array which holds the RAW packet data from RakNet
+     * @param offset The offset at which the packet data starts
+     * @param length The length of the packet data including the checksum
+     * @return Either -1 when the data was corrupted or the length of the decrypted data without the checksum
      */
-    public byte[] decryptInputFromClient( byte[] input ) {
-        byte[] output = this.processCipher( this.clientDecryptor, input );
-        if ( output == null ) {
-            return null;
-        }
-
-        byte[] outputChunked = new byte[input.length - 8];
-
-        System.arraycopy( output, 0, outputChunked, 0, outputChunked.length );
-
-        byte[] hashBytes = calcHash( outputChunked, this.key, this.receiveCounter );
-        for ( int i = output.length - 8; i < output.length; i++ ) {
-            if ( hashBytes[i - ( output.length - 8 )] != output[i] ) {
-                return null;
-            }
-        }
-
-        return outputChunked;
+    public int decryptFromClient( byte[] data, int offset, int length ) {
+        return this.decrypt( this.clientDecryptor, this.receiveChecksum, this.key, data, offset, length );
     }
 
     /**
-     * Encrypt data for the client
+     * Encrypt data for the client in place. The checksum gets written behind the data so the array needs to have
+     * {@link #CHECKSUM_LENGTH} free bytes after it.
      *
-     * @param input zlib compressed data
-     * @return data ready to be sent directly to the client
+     * @param data   The array which holds the zlib compressed data
+     * @param offset The offset at which the data starts
+     * @param length The length of the data
+     * @return the length of the encrypted data including the checksum
      */
-    public byte[] encryptInputForClient( byte[] input ) {
-        byte[] hashBytes = calcHash( input, this.key, this.sendingCounter );
-        byte[] finalInput = new byte[hashBytes.length + input.length];
-
-        System.arraycopy( input, 0, finalInput, 0, input.length );
-        System.arraycopy( hashBytes, 0, finalInput, input.length, 8 );
-
-        return this.processCipher( this.clientEncryptor, finalInput );
+    public int encryptForClient( byte[] data, int offset, int length ) {
+        return this.encrypt( this.clientEncryptor, this.sendingChecksum, this.key, data, offset, length );
     }
 
-
     /**
      * Get the servers public key
      *
@@ -303,44 +278,46 @@ public class EncryptionHandler {
         return PROXY_KEY_PAIR.getPrivate();
     }
 
-    private byte[] calcHash( byte[] input, byte[] key, AtomicLong counter ) {
-        SHA256Digest digest = new SHA256Digest();
+    private int decrypt( PacketCipher cipher, Checksum checksum, byte[] key, byte[] data, int offset, int length ) {
+        if ( length < CHECKSUM_LENGTH ) {
+            return -1;
+        }
 
-        byte[] result = new byte[digest.getDigestSize()];
-        digest.update( ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN ).putLong( counter.getAndIncrement() ).array(), 0, 8 );
-        digest.update( input, 0, input.length );
-        digest.update( key, 0, key.length );
-        digest.doFinal( result, 0 );
+        if ( cipher.process( data, offset, length, data, offset ) != length ) {
+            LOGGER.error( "Could not decrypt from cipher-text: Output size did not match input" );
+            return -1;
+        }
+
+        int payloadLength = length - CHECKSUM_LENGTH;
+        byte[] hash = checksum.calculate( data, offset, payloadLength, key );
+        for ( int i = 0; i < CHECKSUM_LENGTH; i++ ) {
+            if ( hash[i] != data[offset + payloadLength + i] ) {
+                return -1;
+            }
+        }
 
-        return Arrays.copyOf( result, 8 );
+        return payloadLength;
     }
 
-    private byte[] processCipher( BufferedBlockCipher cipher, byte[] input ) {
-        byte[] output = new byte[cipher.getOutputSize( input.length )];
-        int cursor = cipher.processBytes( input, 0, input.length, output, 0 );
+    private int encrypt( PacketCipher cipher, Checksum checksum, byte[] key, byte[] data, int offset, int length ) {
+        byte[] hash = checksum.calculate( data, offset, length, key );
+        System.arraycopy( hash, 0, data, offset + length, CHECKSUM_LENGTH );
 
-        try {
-            // cursor += cipher.doFinal( output, cursor );
-            if ( cursor != output.length ) {
-                throw new InvalidCipherTextException( "Output size did not match cursor" );
-            }
-        } catch ( InvalidCipherTextException e ) {
-            LOGGER.error( "Could not encrypt/decrypt to/from cipher-text", e );
-            return null;
+        int finalLength = length + CHECKSUM_LENGTH;
+        if ( cipher.process( data, offset, finalLength, data, offset ) != finalLength ) {
+            LOGGER.error( "Could not encrypt to cipher-text: Output size did not match input" );
+            return -1;
         }
 
-        return output;
+        return finalLength;
     }
 
     // ========================================== Utility Methods
 
     private byte[] generateECDHSecret( PrivateKey privateKey, PublicKey publicKey ) {
         try {
-            KeyAgreement ka = KeyAgreement.getInstance( "ECDH", "BC" );
-            ka.init( privateKey );
-            ka.doPhase( publicKey, true );
-            return ka.generateSecret();
-        } catch ( NoSuchAlgorithmException | InvalidKeyException | NoSuchProviderException e ) {
+            return HandshakeMaterial.generateSecret( privateKey, publicKey );
+        } catch ( InvalidKeyException e ) {
             LOGGER.error( "Failed to generate Elliptic-Curve-Diffie-Hellman Shared Secret for clientside encryption", e );
             return null;
         }
@@ -365,10 +342,44 @@ public class EncryptionHandler {
         return result;
     }
 
-    private BufferedBlockCipher createCipher( boolean encryptor, byte[] key, byte[] iv ) {
-        BufferedBlockCipher cipher = new BufferedBlockCipher( new CFBBlockCipher( new AESFastEngine(), 8 ) );
-        cipher.init( encryptor, new ParametersWithIV( new KeyParameter( key ), iv ) );
-        return cipher;
+    /**
+     * Checksum state of one direction. The digest and its buffers get reused for every packet, so one instance may
+     * only be used by one thread at a time.
+     */
+    private static final class Checksum {
+
+        private final SHA256Digest digest = new SHA256Digest();
+        private final byte[] counterBytes = new byte[8];
+        private final byte[] result = new byte[this.digest.getDigestSize()];
+        private long counter;
+
+        private byte[] calculate( byte[] data, int offset, int length, byte[] key ) {
+            long value = this.counter++;
+            for ( int i = 0; i < 8; i++ ) {
+                this.counterBytes[i] = (byte) ( value >>> ( i * 8 ) );
+            }
+
+            this.digest.update( this.counterBytes, 0, 8 );
+            this.digest.update( data, offset, length );
+            this.digest.update( key, 0, key.length );
+            this.digest.doFinal( this.result, 0 );
+            return this.result;
+        }
+
+    }
+
+    private PacketCipher createCipher( boolean encryptor, byte[] key, byte[] iv ) {
+        if ( useJdkCipher ) {
+            try {
+                return new JdkPacketCipher( encryptor, key, iv );
+            } catch ( GeneralSecurityException e ) {
+                // Old JREs restrict the AES key size, don't try again for every connection
+                LOGGER.warn( "Could not create JDK AES cipher, falling back to BouncyCastle", e );
+                useJdkCipher = false;
+            }
+        }
+
+        return new BouncyCastlePacketCipher( encryptor, key, iv );
     }
 
 }
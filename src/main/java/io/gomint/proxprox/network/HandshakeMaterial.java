@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.KeyAgreement;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Per thread crypto objects needed for handshakes. Provider lookups are slow and key factories and key agreements
+ * are not thread safe, so every thread keeps its own ones which are ready to be used.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class HandshakeMaterial {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( HandshakeMaterial.class );
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance( "ECDH", "BC" );
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException( "Could not find ECDH Key Factory - please ensure that you have installed the latest version of BouncyCastle", e );
+            }
+        }
+    };
+
+    private static final ThreadLocal<Agreement> AGREEMENTS = new ThreadLocal<Agreement>() {
+        @Override
+        protected Agreement initialValue() {
+            try {
+                return new Agreement( KeyAgreement.getInstance( "ECDH", "BC" ) );
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException( "Could not find ECDH Key Agreement - please ensure that you have installed the latest version of BouncyCastle", e );
+            }
+        }
+    };
+
+    private static final ThreadLocal<SecureRandom> RANDOMS = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // Java 9+ DRBG never blocks after it has been seeded
+                return SecureRandom.getInstance( "DRBG" );
+            } catch ( NoSuchAlgorithmException e ) {
+                // The default one only blocks on generateSeed which we don't use
+                return new SecureRandom();
+            }
+        }
+    };
+
+    /**
+     * Setup everything for the current thread so the first handshake on it doesn't need to wait for it
+     */
+    public static void prepare() {
+        KEY_FACTORIES.get();
+
+        // Seed the random and bind the agreement to our key
+        RANDOMS.get().nextBytes( new byte[16] );
+        Agreement agreement = AGREEMENTS.get();
+        try {
+            agreement.init( EncryptionHandler.PROXY_KEY_PAIR.getPrivate() );
+        } catch ( InvalidKeyException e ) {
+            LOGGER.warn( "Could not prepare ECDH key agreement", e );
+        }
+    }
+
+    /**
+     * Decode a X.509 encoded public key
+     *
+     * @param encoded The encoded key
+     * @return the decoded key
+     * @throws InvalidKeySpecException when the data is no valid key
+     */
+    static PublicKey decodePublicKey( byte[] encoded ) throws InvalidKeySpecException {
+        return KEY_FACTORIES.get().generatePublic( new X509EncodedKeySpec( encoded ) );
+    }
+
+    /**
+     * Generate the shared secret of a ECDH key agreement
+     *
+     * @param privateKey Our private key
+     * @param publicKey  The public key of the other side
+     * @return the shared secret
+     * @throws InvalidKeyException when one of the keys can't be used for ECDH
+     */
+    static byte[] generateSecret( PrivateKey privateKey, PublicKey publicKey ) throws InvalidKeyException {
+        Agreement agreement = AGREEMENTS.get();
+        agreement.init( privateKey );
+
+        try {
+            agreement.keyAgreement.doPhase( publicKey, true );
+
+            // This resets the agreement to the state after init so it can be used again
+            return agreement.keyAgreement.generateSecret();
+        } catch ( InvalidKeyException | IllegalStateException e ) {
+            // We don't know in which state the agreement is now
+            agreement.privateKey = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Generate a random salt without waiting for the entropy pool
+     *
+     * @param length The length of the salt
+     * @return the salt
+     */
+    static byte[] generateSalt( int length ) {
+        byte[] salt = new byte[length];
+        RANDOMS.get().nextBytes( salt );
+        return salt;
+    }
+
+    private static final class Agreement {
+
+        private final KeyAgreement keyAgreement;
+        private PrivateKey privateKey;
+
+        private Agreement( KeyAgreement keyAgreement ) {
+            this.keyAgreement = keyAgreement;
+        }
+
+        private void init( PrivateKey privateKey ) throws InvalidKeyException {
+            if ( this.privateKey != privateKey ) {
+                this.keyAgreement.init( privateKey );
+                this.privateKey = privateKey;
+            }
+        }
+
+    }
+
+}
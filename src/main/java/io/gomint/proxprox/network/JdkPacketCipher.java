@@ -0,0 +1,50 @@
+/*
+ *  Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ *  This code is licensed under the BSD license found in the
+ *  LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Cipher which uses the AES implementation of the JDK. Its AES rounds are JIT intrinsics which use
+ * the AES instructions of the CPU when there are any.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class JdkPacketCipher implements PacketCipher {
+
+    private final Cipher cipher;
+
+    /**
+     * Create a new JDK backed cipher
+     *
+     * @param encryptor true when this cipher should encrypt, false when it should decrypt
+     * @param key       The AES key
+     * @param iv        The initial vector
+     * @throws GeneralSecurityException when the JDK can't provide AES-CFB8 for this key (for example due to the
+     *                                  crypto policy of old JREs)
+     */
+    public JdkPacketCipher( boolean encryptor, byte[] key, byte[] iv ) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance( "AES/CFB8/NoPadding" );
+        this.cipher.init( encryptor ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec( key, "AES" ), new IvParameterSpec( iv ) );
+    }
+
+    @Override
+    public int process( byte[] input, int inputOffset, int length, byte[] output, int outputOffset ) {
+        try {
+            return this.cipher.update( input, inputOffset, length, output, outputOffset );
+        } catch ( ShortBufferException e ) {
+            throw new IllegalArgumentException( "Output buffer is too small for " + length + " bytes", e );
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.proxprox.util.LatencyHistogram;
+import lombok.Getter;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes logins (chain validation, key agreement and token forging) on a fixed amount of threads. Logins are
+ * handled in the order they arrived, when too many are waiting new ones get rejected instead of timing out.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class LoginQueue {
+
+    private final ThreadPoolExecutor executor;
+    private final int maxQueued;
+
+    // Metrics
+    @Getter
+    private final LatencyHistogram waitTime = new LatencyHistogram( 1000, 10000, 100000, 500000, 1000000, 5000000 );
+    @Getter
+    private final LatencyHistogram loginTime = new LatencyHistogram( 1000, 5000, 10000, 50000, 100000, 500000 );
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create a new login queue
+     *
+     * @param threads       The amount of threads which process logins
+     * @param maxQueued     The amount of logins which may wait for a thread
+     * @param threadFactory The factory which creates the login threads
+     */
+    public LoginQueue( int threads, int maxQueued, final ThreadFactory threadFactory ) {
+        this.executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread( final Runnable runnable ) {
+                return threadFactory.newThread( new Runnable() {
+                    @Override
+                    public void run() {
+                        // Get the crypto ready before the first player arrives
+                        HandshakeMaterial.prepare();
+                        runnable.run();
+                    }
+                } );
+            }
+        } );
+        this.executor.prestartAllCoreThreads();
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Queue a login
+     *
+     * @param login The login which should be processed
+     * @return position of the login in the queue, 0 when a thread picks it up right away or -1 when the queue is full
+     */
+    public int submit( final Runnable login ) {
+        // Only an estimate, threads may finish while we look
+        int position = this.executor.getActiveCount() < this.executor.getMaximumPoolSize() ? 0 : this.executor.getQueue().size() + 1;
+        if ( position > this.maxQueued ) {
+            this.rejected.incrementAndGet();
+            return -1;
+        }
+
+        final long queued = System.nanoTime();
+        try {
+            this.executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    waitTime.record( start - queued );
+
+                    try {
+                        login.run();
+                    } finally {
+                        loginTime.record( System.nanoTime() - start );
+                    }
+                }
+            } );
+        } catch ( RejectedExecutionException e ) {
+            // We are shutting down
+            this.rejected.incrementAndGet();
+            return -1;
+        }
+
+        return position;
+    }
+
+    /**
+     * Run crypto work which is not a login, like forging a new chain for a player who switches servers. It does not
+     * take a place in the queue and is not counted in the login metrics.
+     *
+     * @param task The task which should be run
+     */
+    public void execute( Runnable task ) {
+        this.executor.execute( task );
+    }
+
+    /**
+     * Get the amount of logins which wait for a thread
+     *
+     * @return amount of waiting logins
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Get the amount of logins which have been rejected because the queue was full
+     *
+     * @return amount of rejected logins
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Stop processing logins
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of unusual network events which should be looked at when they grow
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class NetworkStats {
+
+    private static final AtomicLong OVERSIZED_BATCHES = new AtomicLong( 0 );
+    private static final AtomicLong INFLATE_BUDGET_EXCEEDED = new AtomicLong( 0 );
+
+    /**
+     * Count a batch which has been bigger than allowed after decompression
+     */
+    public static void oversizedBatch() {
+        OVERSIZED_BATCHES.incrementAndGet();
+    }
+
+    /**
+     * Count a connection which decompressed more data per second than allowed
+     */
+    public static void inflateBudgetExceeded() {
+        INFLATE_BUDGET_EXCEEDED.incrementAndGet();
+    }
+
+    /**
+     * Get the amount of batches which have been bigger than allowed after decompression
+     *
+     * @return amount of oversized batches
+     */
+    public static long getOversizedBatches() {
+        return OVERSIZED_BATCHES.get();
+    }
+
+    /**
+     * Get the amount of times a connection decompressed more data per second than allowed
+     *
+     * @return amount of exceeded decompression budgets
+     */
+    public static long getInflateBudgetExceeded() {
+        return INFLATE_BUDGET_EXCEEDED.get();
+    }
+
+}
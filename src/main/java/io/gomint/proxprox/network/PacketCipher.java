@@ -0,0 +1,31 @@
+/*
+ *  Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ *  This code is licensed under the BSD license found in the
+ *  LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+/**
+ * AES-CFB8 stream cipher for one direction of a encrypted connection. Implementations keep their state
+ * between calls so packets have to be processed in the order they are sent or received.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public interface PacketCipher {
+
+    /**
+     * Encrypt or decrypt the given bytes. Since CFB8 is a stream mode the output has the same length as the input.
+     *
+     * @param input        The array which holds the data
+     * @param inputOffset  The offset at which the data starts
+     * @param length       The amount of bytes which should be processed
+     * @param output       The array into which the result should be written, may be the input array
+     * @param outputOffset The offset at which the result should be written
+     * @return the amount of bytes written into the output
+     */
+    int process( byte[] input, int inputOffset, int length, byte[] output, int outputOffset );
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+
+/**
+ * One packet inside of a bigger array, like a packet of a inflated batch. Unlike a normal {@link PacketBuffer} it
+ * ends with the packet instead of the array. The view does not own the array, everything which is kept after the
+ * packet has been handled needs to be copied.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+class PacketView extends PacketBuffer {
+
+    private int start;
+    private int end;
+
+    /**
+     * Create a new view on the given array. It needs to be moved onto a packet with {@link #wrap(int, int)}.
+     *
+     * @param array The array which holds the packets
+     */
+    PacketView( byte[] array ) {
+        super( array, 0 );
+    }
+
+    /**
+     * Move this view onto a packet and set the position to its start
+     *
+     * @param start  The offset at which the packet starts
+     * @param length The length of the packet
+     */
+    void wrap( int start, int length ) {
+        this.start = start;
+        this.end = start + length;
+        this.setPosition( start );
+    }
+
+    @Override
+    public int getBufferOffset() {
+        return this.start;
+    }
+
+    @Override
+    public int getRemaining() {
+        return this.end - this.getPosition();
+    }
+
+    @Override
+    public void resetPosition() {
+        this.setPosition( this.start );
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the tick update of all players. Players are spread over a fixed amount of shards by their UUID, every
+ * shard gets updated on its own thread while the main thread updates the first one.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class PlayerUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( PlayerUpdater.class );
+
+    private final Shard[] shards;
+    private final ExecutorService executor;
+    private final long tickNanos;
+
+    /**
+     * Create a new updater
+     *
+     * @param shardCount    The amount of shards the players should be spread over
+     * @param threadFactory The factory which creates the threads for all shards except the first one
+     * @param tickNanos     The time one tick may take, shards which take longer count as overrun
+     */
+    public PlayerUpdater( int shardCount, ThreadFactory threadFactory, long tickNanos ) {
+        this.shards = new Shard[Math.max( 1, shardCount )];
+        for ( int i = 0; i < this.shards.length; i++ ) {
+            this.shards[i] = new Shard( i );
+        }
+
+        this.executor = this.shards.length > 1 ? Executors.newFixedThreadPool( this.shards.length - 1, threadFactory ) : null;
+        this.tickNanos = tickNanos;
+    }
+
+    /**
+     * Add a player so it gets updated every tick
+     *
+     * @param connection The connection of the player
+     */
+    public void add( UpstreamConnection connection ) {
+        this.shard( connection ).connections.add( connection );
+    }
+
+    /**
+     * Remove a player so it doesn't get updated anymore
+     *
+     * @param connection The connection of the player
+     */
+    public void remove( UpstreamConnection connection ) {
+        this.shard( connection ).connections.remove( connection );
+    }
+
+    /**
+     * Update all players and wait until every shard is done
+     *
+     * @throws InterruptedException when the calling thread got interrupted while waiting for the shards
+     */
+    public void update() throws InterruptedException {
+        if ( this.executor == null ) {
+            this.shards[0].run();
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch( this.shards.length - 1 );
+        for ( int i = 1; i < this.shards.length; i++ ) {
+            final Shard shard = this.shards[i];
+
+            try {
+                this.executor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            shard.run();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                } );
+            } catch ( RejectedExecutionException e ) {
+                latch.countDown();
+            }
+        }
+
+        this.shards[0].run();
+        latch.await();
+    }
+
+    /**
+     * Get all shards of this updater
+     *
+     * @return array of shards
+     */
+    public Shard[] getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Stop the shard threads
+     */
+    public void shutdown() {
+        if ( this.executor != null ) {
+            this.executor.shutdown();
+        }
+    }
+
+    private Shard shard( UpstreamConnection connection ) {
+        return this.shards[( connection.getUUID().hashCode() & Integer.MAX_VALUE ) % this.shards.length];
+    }
+
+    public final class Shard implements Runnable {
+
+        @Getter
+        private final int id;
+        private final Set<UpstreamConnection> connections = ConcurrentHashMap.newKeySet();
+        private final AtomicLong overruns = new AtomicLong( 0 );
+        @Getter
+        private volatile long lastUpdateNanos;
+
+        private Shard( int id ) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+
+            for ( UpstreamConnection connection : this.connections ) {
+                try {
+                    connection.update();
+                } catch ( Exception e ) {
+                    LOGGER.error( "Could not update player " + connection.getName(), e );
+                }
+            }
+
+            this.lastUpdateNanos = System.nanoTime() - start;
+            if ( this.lastUpdateNanos > tickNanos ) {
+                this.overruns.incrementAndGet();
+            }
+        }
+
+        /**
+         * Get the amount of players in this shard
+         *
+         * @return amount of players
+         */
+        public int getPlayerCount() {
+            return this.connections.size();
+        }
+
+        /**
+         * Get how often this shard took longer than one tick
+         *
+         * @return amount of overruns
+         */
+        public long getOverruns() {
+            return this.overruns.get();
+        }
+
+    }
+
+}
@@ -3,7 +3,6 @@ package io.gomint.proxprox.network;
 import io.gomint.jraknet.Connection;
 import io.gomint.jraknet.PacketBuffer;
 import io.gomint.jraknet.PacketReliability;
-import io.gomint.proxprox.network.protocol.PacketBatch;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 
@@ -20,12 +19,14 @@ import java.util.zip.Deflater;
 @RequiredArgsConstructor
 public class PostProcessWorker {
 
+    private static final int BATCH_ORDERING_CHANNEL = 0;
+
     private final BatchStreamHolder batchHolder = new BatchStreamHolder();
     private final Connection connection;
     @Setter
-    private EncryptionHandler encryptionHandler;
+    private volatile EncryptionHandler encryptionHandler;
 
-    private void writeVarInt( int value, OutputStream stream ) throws IOException {
+    private static void writeVarInt( int value, OutputStream stream ) throws IOException {
         int copyValue = value;
 
         while ( ( copyValue & -128 ) != 0 ) {
@@ -36,88 +37,140 @@ public class PostProcessWorker {
         stream.write( copyValue );
     }
 
-    public void sendPacket( PacketBuffer buffer ) {
-        try {
-            writeVarInt( buffer.getPosition(), this.batchHolder.getOutputStream() );
-            this.batchHolder.getOutputStream().write( buffer.getBuffer(), buffer.getBufferOffset(), buffer.getPosition() - buffer.getBufferOffset() );
-        } catch ( IOException e ) {
-            e.printStackTrace();
-        }
-
-        PacketBatch batch = new PacketBatch();
-        batch.setPayload( this.batchHolder.getBytes() );
-
-        if ( this.encryptionHandler != null ) {
-            batch.setPayload( this.encryptionHandler.isEncryptionFromServerEnabled() ? this.encryptionHandler.encryptInputForServer( batch.getPayload() ) : this.encryptionHandler.encryptInputForClient( batch.getPayload() ) );
-        }
-
-        this.batchHolder.reset();
-
-        buffer = new PacketBuffer( 64 );
-        buffer.writeByte( batch.getId() );
-        batch.serialize( buffer );
-
-        this.connection.send( PacketReliability.RELIABLE_ORDERED, batch.orderingChannel(), buffer.getBuffer(), 0, buffer.getPosition() );
-    }
-
+    /**
+     * Batch, compress and send the given packets. {@link CompressedBatch}es are sent as their own batch without
+     * being compressed again.
+     *
+     * @param buffers The packets which should be sent in this order
+     */
     public void sendPackets( List<PacketBuffer> buffers ) {
+        int pending = 0;
         for ( PacketBuffer buffer : buffers ) {
+            if ( buffer instanceof CompressedBatch ) {
+                // Send what we have until now so the order stays intact
+                if ( pending > 0 ) {
+                    this.sendBatch( this.batchHolder.getBytes() );
+                    this.batchHolder.reset();
+                    pending = 0;
+                }
+
+                // Those buffers have room for the checksum behind their position
+                this.sendBatch( buffer.getBuffer(), buffer.getBufferOffset(), buffer.getPosition() - buffer.getBufferOffset() );
+                continue;
+            }
+
             try {
                 writeVarInt( buffer.getPosition(), this.batchHolder.getOutputStream() );
                 this.batchHolder.getOutputStream().write( buffer.getBuffer(), buffer.getBufferOffset(), buffer.getPosition() - buffer.getBufferOffset() );
+                pending++;
             } catch ( IOException e ) {
                 e.printStackTrace();
             }
         }
 
-        PacketBatch batch = new PacketBatch();
-        batch.setPayload( this.batchHolder.getBytes() );
+        if ( pending > 0 ) {
+            this.sendBatch( this.batchHolder.getBytes() );
+            this.batchHolder.reset();
+        }
+    }
 
-        if ( this.encryptionHandler != null ) {
-            batch.setPayload( this.encryptionHandler.isEncryptionFromServerEnabled() ? this.encryptionHandler.encryptInputForServer( batch.getPayload() ) : this.encryptionHandler.encryptInputForClient( batch.getPayload() ) );
+    /**
+     * Batch and compress the given packets without sending them. The result only contains the compressed payload
+     * so it can be stored and sent to multiple connections using {@link UpstreamConnection#sendCompressedBatch(byte[], int, int)}.
+     *
+     * @param buffers The packets which should be batched in this order
+     * @return the compressed payload of the batch
+     */
+    static byte[] compress( List<PacketBuffer> buffers ) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            for ( PacketBuffer buffer : buffers ) {
+                writeVarInt( buffer.getPosition(), bout );
+                bout.write( buffer.getBuffer(), buffer.getBufferOffset(), buffer.getPosition() - buffer.getBufferOffset() );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
         }
 
-        this.batchHolder.reset();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        deflate( bout.toByteArray(), compressed );
+        return compressed.toByteArray();
+    }
+
+    private static void deflate( byte[] input, ByteArrayOutputStream out ) {
+        byte[] intermediate = new byte[1024];
+        Deflater deflater = ZlibPool.acquireDeflater();
+        try {
+            deflater.setInput( input );
+            deflater.finish();
 
-        PacketBuffer buffer = new PacketBuffer( 64 );
-        buffer.writeByte( batch.getId() );
-        batch.serialize( buffer );
+            while ( !deflater.finished() ) {
+                int read = deflater.deflate( intermediate );
+                out.write( intermediate, 0, read );
+            }
+        } finally {
+            ZlibPool.releaseDeflater( deflater );
+        }
+    }
 
-        this.connection.send( PacketReliability.RELIABLE_ORDERED, batch.orderingChannel(), buffer.getBuffer(), 0, buffer.getPosition() );
+    private void sendBatch( byte[] batch ) {
+        this.sendBatch( batch, 0, batch.length - EncryptionHandler.CHECKSUM_LENGTH );
+    }
+
+    /**
+     * Encrypt (if needed) and send a batch packet. The data gets encrypted in place so the array needs to have
+     * {@link EncryptionHandler#CHECKSUM_LENGTH} free bytes behind the batch.
+     *
+     * @param data   The array which holds the batch packet id followed by the compressed payload
+     * @param offset The offset at which the batch packet starts
+     * @param length The length of the batch packet
+     */
+    private void sendBatch( byte[] data, int offset, int length ) {
+        if ( this.encryptionHandler != null ) {
+            int encrypted = this.encryptionHandler.isEncryptionFromServerEnabled() ?
+                    this.encryptionHandler.encryptForServer( data, offset + 1, length - 1 ) :
+                    this.encryptionHandler.encryptForClient( data, offset + 1, length - 1 );
+            if ( encrypted < 0 ) {
+                return;
+            }
+
+            length = encrypted + 1;
+        }
+
+        this.connection.send( PacketReliability.RELIABLE_ORDERED, BATCH_ORDERING_CHANNEL, data, offset, length );
     }
 
     private final class BatchStreamHolder {
 
         private ByteArrayOutputStream bout;
-        private final Deflater deflater;
 
         private BatchStreamHolder() {
             this.bout = new ByteArrayOutputStream();
-            this.deflater = new Deflater();
         }
 
         private void reset() {
             this.bout = new ByteArrayOutputStream();
-            this.deflater.reset();
-            this.deflater.setInput( new byte[0] );
         }
 
         private OutputStream getOutputStream() {
             return this.bout;
         }
 
+        /**
+         * Compress the collected packets into a batch packet. The result starts with the batch packet id and has
+         * {@link EncryptionHandler#CHECKSUM_LENGTH} free bytes at the end so it can be encrypted in place.
+         *
+         * @return the batch packet
+         */
         private byte[] getBytes() {
             byte[] input = this.bout.toByteArray();
-            this.deflater.setInput( input );
-            this.deflater.finish();
 
             this.bout.reset();
-            byte[] intermediate = new byte[1024];
-            while ( !this.deflater.finished() ) {
-                int read = this.deflater.deflate( intermediate );
-                this.bout.write( intermediate, 0, read );
-            }
+            this.bout.write( Protocol.PACKET_BATCH );
+
+            deflate( input, this.bout );
 
+            this.bout.write( new byte[EncryptionHandler.CHECKSUM_LENGTH], 0, EncryptionHandler.CHECKSUM_LENGTH );
             return this.bout.toByteArray();
         }
 
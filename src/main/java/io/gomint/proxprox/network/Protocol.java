@@ -80,4 +80,9 @@ public class Protocol {
     public static final byte CHANGE_DIMENSION_PACKET = (byte) 0x3D;
     public static final byte PACKET_SET_CHUNK_RADIUS = (byte) 0x45;
 
+    /**
+     * Packet ID of the proxy <-> server plugin channels
+     */
+    public static final byte PACKET_CUSTOM_PROTOCOL = (byte) 0xFF;
+
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+import io.gomint.proxprox.ProxProx;
+import io.gomint.proxprox.util.LatencyHistogram;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects packets of one connection so they can be sent together in one batch. Flushes run on the post process
+ * executor, there is at most one scheduled flush per queue so batches stay in order.
+ * <p>
+ * A idle connection gets flushed as soon as a packet is added. While packets keep coming in there is at most one
+ * flush per flush window, unless the queued packets grow over the byte window.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class SendQueue {
+
+    private final BlockingQueue<PacketBuffer> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger( 0 );
+    private final AtomicBoolean flushScheduled = new AtomicBoolean( false );
+    private final AtomicBoolean delayedFlushScheduled = new AtomicBoolean( false );
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final PostProcessWorker worker;
+    private final long flushWindowNanos;
+    private final int flushBytes;
+    private final Runnable afterFlush;
+
+    // Timing of the queue for the delay histogram
+    private volatile long lastFlush;
+    private volatile long oldestQueued;
+    @Getter
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+
+                if ( afterFlush != null ) {
+                    afterFlush.run();
+                }
+            } finally {
+                flushScheduled.set( false );
+            }
+
+            // Packets which came in while we were flushing wait for the next window
+            if ( !queue.isEmpty() ) {
+                scheduleInWindow();
+            }
+        }
+    };
+
+    private final Runnable delayedFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            delayedFlushScheduled.set( false );
+
+            if ( !queue.isEmpty() ) {
+                schedule();
+            }
+        }
+    };
+
+    /**
+     * Create a new send queue which uses the executors and flush windows of the proxy
+     *
+     * @param proxProx   The proxy which owns the connection
+     * @param worker     The worker which compresses, encrypts and sends the packets
+     * @param afterFlush Task which should be run after every scheduled flush, may be null
+     */
+    public SendQueue( ProxProx proxProx, PostProcessWorker worker, Runnable afterFlush ) {
+        this( proxProx.getPostProcessExecutor(), proxProx.getFlushScheduler(), worker,
+                TimeUnit.MICROSECONDS.toNanos( proxProx.getConfig().getFlushWindowMicros() ),
+                proxProx.getConfig().getFlushWindowBytes(), afterFlush );
+    }
+
+    /**
+     * Create a new send queue
+     *
+     * @param executor         The executor on which flushes are run
+     * @param scheduler        The scheduler which triggers flushes at the end of a flush window
+     * @param worker           The worker which compresses, encrypts and sends the packets
+     * @param flushWindowNanos Minimum time between two flushes while packets keep coming in, 0 to always flush
+     *                         right away
+     * @param flushBytes       Amount of queued bytes after which a flush gets scheduled without waiting for the
+     *                         flush window, 0 to only flush on time
+     * @param afterFlush       Task which should be run after every scheduled flush, may be null
+     */
+    public SendQueue( ExecutorService executor, ScheduledExecutorService scheduler, PostProcessWorker worker,
+                      long flushWindowNanos, int flushBytes, Runnable afterFlush ) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.worker = worker;
+        this.flushWindowNanos = flushWindowNanos;
+        this.flushBytes = flushBytes;
+        this.afterFlush = afterFlush;
+        this.lastFlush = System.nanoTime() - flushWindowNanos;
+    }
+
+    /**
+     * Add a packet to this queue
+     *
+     * @param buffer The buffer which holds the packet, it must not be changed after it has been added
+     */
+    public void add( PacketBuffer buffer ) {
+        boolean wasEmpty = this.queue.isEmpty();
+        if ( wasEmpty ) {
+            this.oldestQueued = System.nanoTime();
+        }
+
+        this.queue.add( buffer );
+
+        int queued = this.queuedBytes.addAndGet( buffer.getPosition() - buffer.getBufferOffset() );
+        if ( this.flushBytes > 0 && queued >= this.flushBytes ) {
+            this.schedule();
+        } else if ( wasEmpty ) {
+            this.scheduleInWindow();
+        }
+    }
+
+    /**
+     * Check if there are packets waiting to be sent
+     *
+     * @return true when there are no packets in this queue
+     */
+    public boolean isEmpty() {
+        return this.queue.isEmpty();
+    }
+
+    /**
+     * Schedule a flush of this queue on the executor. Nothing happens when there is already a flush scheduled,
+     * packets added in the meantime get picked up after it.
+     */
+    public void schedule() {
+        if ( this.flushScheduled.compareAndSet( false, true ) ) {
+            try {
+                this.executor.execute( this.flushTask );
+            } catch ( RejectedExecutionException e ) {
+                this.flushScheduled.set( false );
+            }
+        }
+    }
+
+    /**
+     * Send all queued packets on the calling thread
+     */
+    public synchronized void flush() {
+        if ( this.queue.isEmpty() ) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        this.queueDelay.record( now - this.oldestQueued );
+        this.lastFlush = now;
+
+        List<PacketBuffer> buffers = new ArrayList<>( this.queue.size() );
+        this.queue.drainTo( buffers );
+
+        int bytes = 0;
+        for ( PacketBuffer buffer : buffers ) {
+            bytes += buffer.getPosition() - buffer.getBufferOffset();
+        }
+
+        this.queuedBytes.addAndGet( -bytes );
+        this.worker.sendPackets( buffers );
+    }
+
+    private void scheduleInWindow() {
+        long wait = this.lastFlush + this.flushWindowNanos - System.nanoTime();
+        if ( wait <= 0 ) {
+            this.schedule();
+        } else if ( this.delayedFlushScheduled.compareAndSet( false, true ) ) {
+            try {
+                this.scheduler.schedule( this.delayedFlushTask, wait, TimeUnit.NANOSECONDS );
+            } catch ( RejectedExecutionException e ) {
+                this.delayedFlushScheduled.set( false );
+            }
+        }
+    }
+
+}
@@ -8,7 +8,6 @@
 package io.gomint.proxprox.network;
 
 import io.gomint.jraknet.Connection;
-import io.gomint.jraknet.EncapsulatedPacket;
 import io.gomint.jraknet.PacketBuffer;
 import io.gomint.jraknet.PacketReliability;
 import io.gomint.proxprox.ProxProx;
@@ -26,6 +25,7 @@ import io.gomint.proxprox.inventory.ItemStack;
 import io.gomint.proxprox.jwt.*;
 import io.gomint.proxprox.network.protocol.*;
 import io.gomint.proxprox.util.EntityRewriter;
+import io.gomint.proxprox.util.LatencyHistogram;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
@@ -39,10 +39,10 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 /**
  * @author geNAZt
@@ -51,33 +51,42 @@ import java.util.concurrent.LinkedBlockingQueue;
 @EqualsAndHashCode( of = { "uuid" }, callSuper = false )
 public class UpstreamConnection extends AbstractConnection implements Player {
 
-    private static final PacketBuffer EMPTY_CHUNK = new PacketBuffer( 1 + ( 16 * 16 * 2 ) + ( 16 * 16 ) + 2 );
     private static final EncryptionRequestForger FORGER = new EncryptionRequestForger();
     private static final Logger logger = LoggerFactory.getLogger( UpstreamConnection.class );
+    private static final long LOGIN_REFRESH_MARGIN_MILLIS = 60 * 60 * 1000;
     private final ProxProx proxProx;
 
     // AbstractConnection stuff
     private final Connection connection;
-    private Thread connectionReadThread;
     private PostProcessWorker postProcessWorker;
-    private BlockingQueue<PacketBuffer> packetQueue = new LinkedBlockingQueue<>();
+    private SendQueue sendQueue;
+
+    // Packets for the client which arrive before the client has finished the resource pack handshake
+    private final Object heldPacketsLock = new Object();
+    private volatile List<PacketBuffer> heldPackets;
+    private long heldBytes;
 
     // Downstream
     private DownstreamConnection currentDownStream;
-    private DownstreamConnection pendingDownStream;
-
-    // User data
-    private UUID uuid;
-    private String username;
-    private boolean valid;
-    private String xboxId;
-    private JSONObject skinData;
+    private volatile DownstreamConnection pendingDownStream;
+
+    // User data, written by the login thread and read by every other thread
+    private volatile UUID uuid;
+    private volatile String username;
+    private volatile boolean valid;
+    private volatile String xboxId;
+    private volatile JSONObject skinData;
     @Getter private Debugger debugger;
 
     @Setter
     @Getter
     private EntityRewriter entityRewriter;
     private int protocolVersion;
+    private boolean loginQueued;
+
+    // Forged logins for untrusted and trusted downstream servers
+    private final byte[][] loginPayloads = new byte[2][];
+    private final long[] loginPayloadRefresh = new long[2];
 
     // Last known good server
     private ServerDataHolder lastKnownServer;
@@ -90,7 +99,7 @@ public class UpstreamConnection extends AbstractConnection implements Player {
     // View distance
     @Getter
     private int viewDistance = 6;
-    private String disconnect = null;
+    private volatile String disconnect = null;
 
     /**
      * Create a new AbstractConnection wrapper which represents the communication from User <-> Proxy
@@ -111,42 +120,30 @@ public class UpstreamConnection extends AbstractConnection implements Player {
     protected void setup() {
         super.setup();
 
-        // Create thread for reading data
+        // Let the reader pool handle incoming data
         this.postProcessWorker = new PostProcessWorker( connection );
-        this.connectionReadThread = this.proxProx.getNewClientConnectionThread( new Runnable() {
+        this.sendQueue = new SendQueue( this.proxProx, this.postProcessWorker, new Runnable() {
             @Override
             public void run() {
-                Thread.currentThread().setName( "UpStream unknown (" + connection.getGuid() + ") [Packet Read/Rewrite]" );
-
-                while ( connection.isConnected() ) {
-                    EncapsulatedPacket data = connection.receive();
-                    if ( data == null ) {
-                        try {
-                            Thread.sleep( 10 );
-                        } catch ( InterruptedException e ) {
-                            e.printStackTrace();
-                        }
+                checkDisconnect();
+            }
+        } );
+        this.proxProx.getConnectionReaderPool().register( this.connection.getGuid(), this );
+    }
 
-                        continue;
-                    }
+    @Override
+    protected boolean isReadable() {
+        return this.connection.isConnected();
+    }
 
-                    PacketBuffer buffer = new PacketBuffer( data.getPacketData(), 0 );
-                    if ( buffer.getRemaining() <= 0 ) {
-                        // Malformed packet:
-                        logger.warn( "Got 0 length packet" );
-                        return;
-                    }
+    @Override
+    protected int getMaxInflatedBatchSize() {
+        return this.proxProx.getConfig().getMaxInflatedBatchSize();
+    }
 
-                    // Do we want to handle it?
-                    try {
-                        handlePacket( buffer, data.getReliability(), data.getOrderingChannel(), false );
-                    } catch ( Throwable t ) {
-                        t.printStackTrace();
-                    }
-                }
-            }
-        } );
-        this.connectionReadThread.start();
+    @Override
+    protected long getInflateBudgetPerSecond() {
+        return this.proxProx.getConfig().getMaxInflatedBytesPerSecond();
     }
 
     @Override
@@ -198,119 +195,40 @@ public class UpstreamConnection extends AbstractConnection implements Player {
                     return;
                 }
 
-                // More data please
-                ByteBuffer byteBuffer = ByteBuffer.wrap( packet.getPayload() );
-                byteBuffer.order( ByteOrder.LITTLE_ENDIAN );
-                byte[] stringBuffer = new byte[byteBuffer.getInt()];
-                byteBuffer.get( stringBuffer );
-
-                // Parse chain and validate
-                String jwt = new String( stringBuffer );
-                JSONObject json;
-                try {
-                    json = parseJwtString( jwt );
-                } catch ( ParseException e ) {
-                    e.printStackTrace();
-                    return;
-                }
-
-                Object jsonChainRaw = json.get( "chain" );
-                if ( jsonChainRaw == null || !( jsonChainRaw instanceof JSONArray ) ) {
+                // Everything else needs a lot of crypto which is done on the login threads
+                if ( this.loginQueued ) {
                     return;
                 }
 
-                MojangChainValidator chainValidator = new MojangChainValidator();
-                JSONArray jsonChain = (JSONArray) jsonChainRaw;
-                for ( Object jsonTokenRaw : jsonChain ) {
-                    if ( jsonTokenRaw instanceof String ) {
-                        try {
-                            JwtToken token = JwtToken.parse( (String) jsonTokenRaw );
-                            chainValidator.addToken( token );
-                        } catch ( IllegalArgumentException e ) {
-                            e.printStackTrace();
+                this.loginQueued = true;
+                int position = this.proxProx.getLoginQueue().submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        if ( isConnected() ) {
+                            handleLogin( packet );
                         }
                     }
-                }
-
-                this.valid = chainValidator.validate();
-
-                // When we are in online mode kick all invalid users
-                if ( this.proxProx.getConfig().isOnlineMode() && !this.valid ) {
-                    disconnect( "Only valid xbox live accounts can join. Please login" );
-                    return;
-                }
-
-                // Log xbox accounts if needed
-                if ( this.valid ) {
-                    logger.info( "Got valid XBOX Live Account ID: " + chainValidator.getXboxId() );
-                    this.xboxId = chainValidator.getXboxId();
-                }
-
-                // Check for uuid or name equals
-                for ( Player upstreamConnection : this.proxProx.getPlayers() ) {
-                    if ( chainValidator.getUUID().equals( upstreamConnection.getUUID() ) || chainValidator.getUsername().equals( upstreamConnection.getName() ) ) {
-                        disconnect( "Logged in from another location" );
-                        return;
-                    }
-                }
-
-                this.uuid = chainValidator.getUUID();
-                this.username = chainValidator.getUsername();
-
-                // Parse skin
-                byte[] skin = new byte[byteBuffer.getInt()];
-                byteBuffer.get( skin );
-
-                JwtToken skinToken = JwtToken.parse( new String( skin ) );
+                } );
 
-                try {
-                    skinToken.validateSignature( JwtAlgorithm.ES384, chainValidator.getTrustedKeys().get( skinToken.getHeader().getProperty( "x5u" ) ) );
-                    this.skinData = skinToken.getClaims();
-                } catch ( JwtSignatureException e ) {
-                    e.printStackTrace();
-                }
-
-                PlayerLoginEvent event = this.proxProx.getPluginManager().callEvent( new PlayerLoginEvent( this ) );
-                if ( event.isCancelled() ) {
-                    disconnect( event.getDisconnectReason() );
-                    return;
-                }
-
-                logger.info( "Logged in as " + chainValidator.getUsername() + " (UUID: " + chainValidator.getUUID().toString() + "; GUID: " + connection.getGuid() + ")" );
-                Thread.currentThread().setName( "UpStream " + getUUID() + " [Packet Read/Rewrite]" );
-                this.state = ConnectionState.CONNECTED;
-
-                send( new PacketPlayState( PacketPlayState.PlayState.LOGIN_SUCCESS ) );
-                this.proxProx.addPlayer( this );
-
-                // We need to start encryption first
-                this.encryptionHandler = new EncryptionHandler();
-                this.encryptionHandler.supplyClientKey( chainValidator.getClientPublicKey() );
-                if ( this.encryptionHandler.beginClientsideEncryption() ) {
-                    // Forge a JWT
-                    String encryptionRequestJWT = FORGER.forge( encryptionHandler.getServerPublic(), encryptionHandler.getServerPrivate(), encryptionHandler.getClientSalt() );
-
-                    PacketEncryptionRequest packetEncryptionRequest = new PacketEncryptionRequest();
-                    packetEncryptionRequest.setJwt( encryptionRequestJWT );
-                    send( packetEncryptionRequest );
-                } else {
-                    disconnect( "Error in creating AES token" );
+                if ( position < 0 ) {
+                    disconnect( "Too many players are logging in right now, please try again in a moment" );
+                } else if ( position > 0 ) {
+                    logger.info( "Login of " + this.connection.getAddress() + " is queued at position " + position );
                 }
 
                 break;
 
             case Protocol.PACKET_ENCRYPTION_READY:
+                // The encryption request needs to go out unencrypted
+                this.sendQueue.flush();
                 this.postProcessWorker.setEncryptionHandler( this.encryptionHandler );
 
-                this.connect( this.proxProx.getConfig().getDefaultServer().getIp(), this.proxProx.getConfig().getDefaultServer().getPort() );
-
                 // Send resource pack stuff
                 PacketResourcePacksInfo packetResourcePacksInfo = new PacketResourcePacksInfo();
                 packetResourcePacksInfo.setMustAccept( false );
                 packetResourcePacksInfo.setBehaviourPackEntries( new ArrayList<>() );
                 packetResourcePacksInfo.setResourcePackEntries( new ArrayList<>() );
-                send( packetResourcePacksInfo );
-
+                this.sendPastHold( packetResourcePacksInfo );
                 break;
 
             case Protocol.PACKET_RESOURCEPACK_RESPONSE:
@@ -323,9 +241,11 @@ public class UpstreamConnection extends AbstractConnection implements Player {
                         resourcePackStack.setMustAccept( false );
                         resourcePackStack.setBehaviourPackEntries( new ArrayList<>() );
                         resourcePackStack.setResourcePackEntries( new ArrayList<>() );
-                        send( resourcePackStack );
+                        this.sendPastHold( resourcePackStack );
                         break;
                     case COMPLETED:
+                        // Now the client can get everything the server has sent in the meantime
+                        this.releaseHeldPackets();
                         break;
                 }
 
@@ -341,6 +261,137 @@ public class UpstreamConnection extends AbstractConnection implements Player {
         }
     }
 
+    /**
+     * Validate the login chain, authenticate the player and start encryption. This runs on a login thread.
+     *
+     * @param packet The login packet of the client
+     */
+    private void handleLogin( PacketLogin packet ) {
+        // More data please
+        ByteBuffer byteBuffer = ByteBuffer.wrap( packet.getPayload() );
+        byteBuffer.order( ByteOrder.LITTLE_ENDIAN );
+        byte[] stringBuffer = new byte[byteBuffer.getInt()];
+        byteBuffer.get( stringBuffer );
+
+        // Parse chain and validate
+        String jwt = new String( stringBuffer );
+        JSONObject json;
+        try {
+            json = parseJwtString( jwt );
+        } catch ( ParseException e ) {
+            e.printStackTrace();
+            return;
+        }
+
+        Object jsonChainRaw = json.get( "chain" );
+        if ( jsonChainRaw == null || !( jsonChainRaw instanceof JSONArray ) ) {
+            return;
+        }
+
+        MojangChainValidator chainValidator = new MojangChainValidator();
+        JSONArray jsonChain = (JSONArray) jsonChainRaw;
+        for ( Object jsonTokenRaw : jsonChain ) {
+            if ( jsonTokenRaw instanceof String ) {
+                try {
+                    JwtToken token = JwtToken.parse( (String) jsonTokenRaw );
+                    chainValidator.addToken( token );
+                } catch ( IllegalArgumentException e ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        this.valid = chainValidator.validate();
+
+        // When we are in online mode kick all invalid users
+        if ( this.proxProx.getConfig().isOnlineMode() && !this.valid ) {
+            disconnect( "Only valid xbox live accounts can join. Please login" );
+            return;
+        }
+
+        // Log xbox accounts if needed
+        if ( this.valid ) {
+            logger.info( "Got valid XBOX Live Account ID: " + chainValidator.getXboxId() );
+            this.xboxId = chainValidator.getXboxId();
+        }
+
+        this.uuid = chainValidator.getUUID();
+        this.username = chainValidator.getUsername();
+
+        // Parse skin
+        byte[] skin = new byte[byteBuffer.getInt()];
+        byteBuffer.get( skin );
+
+        JwtToken skinToken = JwtToken.parse( new String( skin ) );
+
+        try {
+            skinToken.validateSignature( JwtAlgorithm.ES384, chainValidator.getTrustedKeys().get( skinToken.getHeader().getProperty( "x5u" ) ) );
+            this.skinData = skinToken.getClaims();
+        } catch ( JwtSignatureException e ) {
+            e.printStackTrace();
+        }
+
+        PlayerLoginEvent event = this.proxProx.getPluginManager().callEvent( new PlayerLoginEvent( this ) );
+        if ( event.isCancelled() ) {
+            disconnect( event.getDisconnectReason() );
+            return;
+        }
+
+        // Claiming uuid and name is atomic so two logins of the same account can't both get in
+        if ( !this.proxProx.addPlayer( this ) ) {
+            disconnect( "Logged in from another location" );
+            return;
+        }
+
+        // The connection may have closed while we logged in, its removal did not see us yet
+        if ( !this.isConnected() ) {
+            this.proxProx.removePlayer( this );
+            return;
+        }
+
+        logger.info( "Logged in as " + chainValidator.getUsername() + " (UUID: " + chainValidator.getUUID().toString() + "; GUID: " + connection.getGuid() + ")" );
+        this.state = ConnectionState.CONNECTED;
+
+        send( new PacketPlayState( PacketPlayState.PlayState.LOGIN_SUCCESS ) );
+
+        // We need to start encryption first
+        this.encryptionHandler = new EncryptionHandler();
+        this.encryptionHandler.supplyClientKey( chainValidator.getClientPublicKey() );
+        if ( this.encryptionHandler.beginClientsideEncryption() ) {
+            // Forge a JWT
+            String encryptionRequestJWT = FORGER.forge( encryptionHandler.getServerPublic(), encryptionHandler.getServerPrivate(), encryptionHandler.getClientSalt() );
+
+            // Login to the default server while the client does its part of the handshake, the server packets are
+            // held back until the client is ready for them. The hold has to be in place before the request goes
+            // out, otherwise the client may already be done before anything is held.
+            final List<PacketBuffer> held = new ArrayList<>();
+            this.heldPackets = held;
+
+            // Clients which never finish the handshake would let us hold back server packets forever
+            int loginTimeout = this.proxProx.getConfig().getLoginTimeoutMillis();
+            if ( loginTimeout > 0 ) {
+                this.proxProx.getFlushScheduler().schedule( new Runnable() {
+                    @Override
+                    public void run() {
+                        if ( heldPackets == held ) {
+                            disconnect( "Login timed out" );
+                        }
+                    }
+                }, loginTimeout, TimeUnit.MILLISECONDS );
+            }
+
+            PacketEncryptionRequest packetEncryptionRequest = new PacketEncryptionRequest();
+            packetEncryptionRequest.setJwt( encryptionRequestJWT );
+            this.sendPastHold( packetEncryptionRequest );
+
+            // Forge the login for the default server while we still are on the login thread
+            this.getLoginPayload( this.proxProx.getConfig().getDefaultServer().isTrusted() );
+            this.connect( this.proxProx.getConfig().getDefaultServer().getIp(), this.proxProx.getConfig().getDefaultServer().getPort() );
+        } else {
+            disconnect( "Error in creating AES token" );
+        }
+    }
+
     /**
      * Connect to a new DownStream server
      *
@@ -359,7 +410,9 @@ public class UpstreamConnection extends AbstractConnection implements Player {
         }
 
         this.debugger.addCustomLine( "[CONN] New connection to " + switchEvent.getTo().getIP() + ":" + switchEvent.getTo().getPort() );
-        this.pendingDownStream = new DownstreamConnection( this.proxProx, this, switchEvent.getTo().getIP(), switchEvent.getTo().getPort() );
+        DownstreamConnection downstreamConnection = new DownstreamConnection( this.proxProx, this, switchEvent.getTo().getIP(), switchEvent.getTo().getPort() );
+        this.pendingDownStream = downstreamConnection;
+        downstreamConnection.connect();
     }
 
     public void sendPlayState( PacketPlayState.PlayState state ) {
@@ -412,35 +465,136 @@ public class UpstreamConnection extends AbstractConnection implements Player {
             this.currentDownStream.close( false );
 
             // Cleanup all entities
-            for ( Long eID : this.currentDownStream.getSpawnedEntities() ) {
-                send( new PacketRemoveEntity( eID ) );
-                this.entityRewriter.removeServerEntity( eID );
-            }
+            this.currentDownStream.getSpawnedEntities().forEach( new LongConsumer() {
+                @Override
+                public void accept( long eID ) {
+                    send( new PacketRemoveEntity( eID ) );
+                    entityRewriter.removeServerEntity( eID );
+                }
+            } );
 
             // Loading screen (holy did this take long to figure out :D)
-            send( new PacketChangeDimension( (byte) 0 ) );
-            send( new PacketPlayState( PacketPlayState.PlayState.SPAWN ) );
-            send( new PacketChangeDimension( (byte) 1 ) );
-            send( new PacketPlayState( PacketPlayState.PlayState.SPAWN ) );
-
+            this.sendCompressedBatch( DimensionSwitch.START, 0, DimensionSwitch.START.length );
             move( 0, 4000, 0, 0, 0 );
-            sendEmptyChunks();
 
-            send( new PacketChangeDimension( (byte) 1 ) );
-            send( new PacketPlayState( PacketPlayState.PlayState.SPAWN ) );
-            send( new PacketChangeDimension( (byte) 0 ) );
+            this.currentDownStream = null;
+
+            // The downstream login waits until the client is back in the overworld so no server packet can get
+            // in between the loading screen packets
+            this.sendEmptyChunks( 0, downstreamConnection );
+            return;
+        }
+
+        this.loginDownstream( downstreamConnection );
+    }
+
+    /**
+     * Send the empty chunks of the loading screen one after another without blocking any thread in between
+     *
+     * @param index                The index of the next chunk which should be sent
+     * @param downstreamConnection The downstream which should be logged in after the loading screen
+     */
+    private void sendEmptyChunks( final int index, final DownstreamConnection downstreamConnection ) {
+        if ( !this.isConnected() || this.pendingDownStream != downstreamConnection ) {
+            return;
+        }
+
+        if ( index >= DimensionSwitch.EMPTY_CHUNKS.length ) {
             // There needs to be one additional spawn but the downstream server sends one so its ok
+            this.sendCompressedBatch( DimensionSwitch.END, 0, DimensionSwitch.END.length );
+            this.execute( new Runnable() {
+                @Override
+                public void run() {
+                    if ( pendingDownStream == downstreamConnection ) {
+                        loginDownstream( downstreamConnection );
+                    }
+                }
+            } );
 
-            this.currentDownStream = null;
+            return;
+        }
+
+        byte[] chunk = DimensionSwitch.EMPTY_CHUNKS[index];
+        this.sendCompressedBatch( chunk, 0, chunk.length );
+
+        this.proxProx.getFlushScheduler().schedule( new Runnable() {
+            @Override
+            public void run() {
+                sendEmptyChunks( index + 1, downstreamConnection );
+            }
+        }, DimensionSwitch.CHUNK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Run a task on the reader thread of this player so it is ordered with all packets of the player
+     *
+     * @param task The task which should be run
+     */
+    void execute( Runnable task ) {
+        this.proxProx.getConnectionReaderPool().execute( this.connection.getGuid(), task );
+    }
+
+    private void loginDownstream( final DownstreamConnection downstreamConnection ) {
+        final boolean trusted = downstreamConnection.isTrusted();
+        if ( !this.hasLoginPayload( trusted ) ) {
+            // Forging is crypto work which belongs on the login threads, the login continues on our thread afterwards
+            this.proxProx.getLoginQueue().execute( new Runnable() {
+                @Override
+                public void run() {
+                    getLoginPayload( trusted );
+                    execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            if ( pendingDownStream == downstreamConnection ) {
+                                loginDownstream( downstreamConnection );
+                            }
+                        }
+                    } );
+                }
+            } );
+
+            return;
         }
 
         // Send our handshake to the server -> this will trigger it to respond with a 0x03 ServerHandshake packet:
+        PacketLogin packetClientHandshake = new PacketLogin();
+        packetClientHandshake.setProtocol( protocolVersion );
+        packetClientHandshake.setPayload( this.getLoginPayload( trusted ) );
+        downstreamConnection.send( packetClientHandshake );
+    }
+
+    /**
+     * Check if a forged login for downstream servers is ready and does not need to be refreshed yet
+     *
+     * @param trusted true when the login should ask the server to skip encryption
+     * @return true when {@link #getLoginPayload(boolean)} does not need to forge
+     */
+    private synchronized boolean hasLoginPayload( boolean trusted ) {
+        int index = trusted ? 1 : 0;
+        return this.loginPayloads[index] != null && System.currentTimeMillis() < this.loginPayloadRefresh[index];
+    }
+
+    /**
+     * Get the forged login chain and skin of this player. Signing them is expensive so they are reused for every
+     * server switch until the chain is about to expire.
+     *
+     * @param trusted true when the login should ask the server to skip encryption
+     * @return payload of the login packet for downstream servers
+     */
+    private synchronized byte[] getLoginPayload( boolean trusted ) {
+        int index = trusted ? 1 : 0;
+        long now = System.currentTimeMillis();
+        if ( this.loginPayloads[index] != null && now < this.loginPayloadRefresh[index] ) {
+            return this.loginPayloads[index];
+        }
+
         MojangLoginForger mojangLoginForger = new MojangLoginForger();
         mojangLoginForger.setPublicKey( EncryptionHandler.PROXY_KEY_PAIR.getPublic() );
         mojangLoginForger.setUsername( this.username );
         mojangLoginForger.setUuid( this.uuid );
         mojangLoginForger.setSkinData( this.skinData );
         mojangLoginForger.setXuid( this.xboxId );
+        mojangLoginForger.setTrusted( trusted );
 
         String jwt = "{\"chain\":[\"" + mojangLoginForger.forge( EncryptionHandler.PROXY_KEY_PAIR.getPrivate() ) + "\"]}";
         String skin = mojangLoginForger.forgeSkin( EncryptionHandler.PROXY_KEY_PAIR.getPrivate() );
@@ -455,28 +609,9 @@ public class UpstreamConnection extends AbstractConnection implements Player {
         byteBuffer.putInt( skin.length() );
         byteBuffer.put( skin.getBytes() );
 
-        PacketLogin packetClientHandshake = new PacketLogin();
-        packetClientHandshake.setProtocol( protocolVersion );
-        packetClientHandshake.setPayload( byteBuffer.array() );
-        downstreamConnection.send( packetClientHandshake );
-    }
-
-    private void sendEmptyChunks() {
-        for ( int x = -3; x < 3; x++ ) {
-            for ( int z = -3; z < 3; z++ ) {
-                PacketFullChunkData chunk = new PacketFullChunkData();
-                chunk.setChunkX( x );
-                chunk.setChunkZ( z );
-                chunk.setChunkData( EMPTY_CHUNK.getBuffer() );
-                send( chunk );
-
-                try {
-                    Thread.sleep( 5 );
-                } catch ( InterruptedException e ) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        this.loginPayloads[index] = byteBuffer.array();
+        this.loginPayloadRefresh[index] = now + MojangLoginForger.CHAIN_VALIDITY_MILLIS - LOGIN_REFRESH_MARGIN_MILLIS;
+        return this.loginPayloads[index];
     }
 
     public void move( float x, float y, float z, float yaw, float pitch ) {
@@ -497,15 +632,9 @@ public class UpstreamConnection extends AbstractConnection implements Player {
      * @param packet The packet which should be send
      */
     public void send( Packet packet ) {
-        PacketBuffer buffer = new PacketBuffer( 64 );
-        buffer.writeByte( packet.getId() );
-        buffer.writeShort( (short) 0 );
-        packet.serialize( buffer );
-
-        this.debugger.addPacket( "UpStream", "Client", packet.getId(), buffer );
-
+        PacketBuffer buffer = this.serialize( packet );
         if ( !( packet instanceof PacketBatch ) && packet.mustBeInBatch() ) {
-            this.packetQueue.add( buffer );
+            this.queue( buffer );
         } else {
             this.connection.send( PacketReliability.RELIABLE_ORDERED, packet.orderingChannel(), buffer.getBuffer(), 0, buffer.getPosition() );
         }
@@ -517,6 +646,12 @@ public class UpstreamConnection extends AbstractConnection implements Player {
      * @param reason The reason to display
      */
     public void disconnect( String reason ) {
+        // Held server packets are of no use anymore, the disconnect has to reach the client
+        synchronized ( this.heldPacketsLock ) {
+            this.heldPackets = null;
+            this.heldBytes = 0;
+        }
+
         send( new PacketDisconnect( reason ) );
         this.disconnect = reason;
     }
@@ -616,6 +751,7 @@ public class UpstreamConnection extends AbstractConnection implements Player {
      *
      * @return The jRakNet Connection
      */
+    @Override
     public Connection getConnection() {
         return connection;
     }
@@ -668,20 +804,125 @@ public class UpstreamConnection extends AbstractConnection implements Player {
         packetBuffer.writeShort( (short) 0 );
         packetBuffer.writeBytes( data );
 
-        this.packetQueue.add( packetBuffer );
+        this.queue( packetBuffer );
+    }
+
+    private PacketBuffer serialize( Packet packet ) {
+        PacketBuffer buffer = new PacketBuffer( 64 );
+        buffer.writeByte( packet.getId() );
+        buffer.writeShort( (short) 0 );
+        packet.serialize( buffer );
+
+        this.debugger.addPacket( "UpStream", "Client", packet.getId(), buffer );
+        return buffer;
+    }
+
+    /**
+     * Queue a packet for the client or hold it back when the client has not enabled encryption yet
+     *
+     * @param buffer The packet which should be sent
+     */
+    private void queue( PacketBuffer buffer ) {
+        if ( this.heldPackets != null ) {
+            boolean overflow = false;
+            synchronized ( this.heldPacketsLock ) {
+                if ( this.heldPackets != null ) {
+                    int maxHeldBytes = this.proxProx.getConfig().getMaxHeldBytes();
+                    this.heldBytes += buffer.getPosition() - buffer.getBufferOffset();
+                    if ( maxHeldBytes <= 0 || this.heldBytes <= maxHeldBytes ) {
+                        this.heldPackets.add( buffer );
+                        return;
+                    }
+
+                    // Only one thread may notice the overflow, the disconnect drops the held packets anyway
+                    this.heldPackets = null;
+                    this.heldBytes = 0;
+                    overflow = true;
+                }
+            }
+
+            if ( overflow ) {
+                logger.warn( "Client " + this.connection.getAddress() + " did not finish its login while the server sent more than " + this.proxProx.getConfig().getMaxHeldBytes() + " bytes" );
+                disconnect( "Login timed out" );
+                return;
+            }
+        }
+
+        this.sendQueue.add( buffer );
+    }
+
+    /**
+     * Queue a packet of the handshake between proxy and client. It goes out even while server packets are held back.
+     *
+     * @param packet The packet which should be sent
+     */
+    private void sendPastHold( Packet packet ) {
+        this.sendQueue.add( this.serialize( packet ) );
+    }
+
+    /**
+     * Queue all packets which have been held back while the client finished the handshake
+     */
+    private void releaseHeldPackets() {
+        synchronized ( this.heldPacketsLock ) {
+            if ( this.heldPackets != null ) {
+                for ( PacketBuffer buffer : this.heldPackets ) {
+                    this.sendQueue.add( buffer );
+                }
+
+                // Only now other threads may queue directly so nothing overtakes the held packets
+                this.heldPackets = null;
+                this.heldBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Send a batch which has already been compressed. It only needs to be encrypted and keeps its order with all
+     * other queued packets.
+     *
+     * @param compressed The array which holds the zlib compressed payload of the batch
+     * @param offset     The offset at which the payload starts
+     * @param length     The length of the payload
+     */
+    public void sendCompressedBatch( byte[] compressed, int offset, int length ) {
+        this.queue( new CompressedBatch( compressed, offset, length ) );
     }
 
     public boolean isConnected() {
         return this.connection.isConnected();
     }
 
+    /**
+     * Called every tick. Queued packets normally get flushed by their send queue on their own, this makes sure
+     * nothing stays in a queue and pending disconnects get handled.
+     */
     public void update() {
-        if ( this.packetQueue.size() > 0 ) {
-            List<PacketBuffer> buffers = new ArrayList<>();
-            this.packetQueue.drainTo( buffers );
-            this.postProcessWorker.sendPackets( buffers );
+        DownstreamConnection downStream = this.currentDownStream;
+        if ( downStream != null ) {
+            downStream.update();
+        }
+
+        DownstreamConnection pending = this.pendingDownStream;
+        if ( pending != null ) {
+            pending.update();
+        }
+
+        if ( !this.sendQueue.isEmpty() || this.disconnect != null ) {
+            this.sendQueue.schedule();
         }
+    }
+
+    /**
+     * Get the histogram of how long packets to the client waited in the send queue
+     *
+     * @return histogram of queueing delays
+     */
+    public LatencyHistogram getQueueDelay() {
+        return this.sendQueue.getQueueDelay();
+    }
 
+    private void checkDisconnect() {
         if ( this.disconnect != null ) {
             this.connection.disconnect( this.disconnect );
 
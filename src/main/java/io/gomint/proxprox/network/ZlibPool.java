@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per thread pools of deflaters and inflaters. Every one of them holds native zlib memory until it gets ended, so
+ * instead of giving each connection its own one they get borrowed for a single batch and returned afterwards.
+ * Each thread keeps only a few of them, everything above that gets ended right away.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class ZlibPool {
+
+    private static final int MAX_POOLED_PER_THREAD = 2;
+
+    // Native memory used by zlib with the default window size and memory level
+    private static final long DEFLATER_NATIVE_BYTES = ( 1 << 17 ) + ( 1 << 17 ) + 6 * 1024;
+    private static final long INFLATER_NATIVE_BYTES = ( 1 << 15 ) + 7 * 1024;
+
+    private static final AtomicInteger DEFLATERS = new AtomicInteger( 0 );
+    private static final AtomicInteger INFLATERS = new AtomicInteger( 0 );
+
+    private static final ThreadLocal<ArrayDeque<Deflater>> POOLED_DEFLATERS = new ThreadLocal<ArrayDeque<Deflater>>() {
+        @Override
+        protected ArrayDeque<Deflater> initialValue() {
+            return new ArrayDeque<>( MAX_POOLED_PER_THREAD );
+        }
+    };
+
+    private static final ThreadLocal<ArrayDeque<Inflater>> POOLED_INFLATERS = new ThreadLocal<ArrayDeque<Inflater>>() {
+        @Override
+        protected ArrayDeque<Inflater> initialValue() {
+            return new ArrayDeque<>( MAX_POOLED_PER_THREAD );
+        }
+    };
+
+    /**
+     * Borrow a deflater. It has to be given back with {@link #releaseDeflater(Deflater)} on the same thread.
+     *
+     * @return deflater which is ready to be used
+     */
+    public static Deflater acquireDeflater() {
+        Deflater deflater = POOLED_DEFLATERS.get().poll();
+        if ( deflater == null ) {
+            deflater = new Deflater();
+            DEFLATERS.incrementAndGet();
+        }
+
+        return deflater;
+    }
+
+    /**
+     * Give back a borrowed deflater. It must not be used afterwards.
+     *
+     * @param deflater The deflater which has been borrowed
+     */
+    public static void releaseDeflater( Deflater deflater ) {
+        ArrayDeque<Deflater> pool = POOLED_DEFLATERS.get();
+        if ( pool.size() < MAX_POOLED_PER_THREAD ) {
+            deflater.reset();
+            pool.push( deflater );
+        } else {
+            deflater.end();
+            DEFLATERS.decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrow a inflater. It has to be given back with {@link #releaseInflater(Inflater)} on the same thread.
+     *
+     * @return inflater which is ready to be used
+     */
+    public static Inflater acquireInflater() {
+        Inflater inflater = POOLED_INFLATERS.get().poll();
+        if ( inflater == null ) {
+            inflater = new Inflater();
+            INFLATERS.incrementAndGet();
+        }
+
+        return inflater;
+    }
+
+    /**
+     * Give back a borrowed inflater. It must not be used afterwards.
+     *
+     * @param inflater The inflater which has been borrowed
+     */
+    public static void releaseInflater( Inflater inflater ) {
+        ArrayDeque<Inflater> pool = POOLED_INFLATERS.get();
+        if ( pool.size() < MAX_POOLED_PER_THREAD ) {
+            inflater.reset();
+            pool.push( inflater );
+        } else {
+            inflater.end();
+            INFLATERS.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the amount of deflaters which have not been ended yet
+     *
+     * @return amount of live deflaters
+     */
+    public static int getDeflaterCount() {
+        return DEFLATERS.get();
+    }
+
+    /**
+     * Get the amount of inflaters which have not been ended yet
+     *
+     * @return amount of live inflaters
+     */
+    public static int getInflaterCount() {
+        return INFLATERS.get();
+    }
+
+    /**
+     * Get a estimate of the native memory which is held by all live deflaters and inflaters
+     *
+     * @return native zlib memory in bytes
+     */
+    public static long getNativeMemory() {
+        return DEFLATERS.get() * DEFLATER_NATIVE_BYTES + INFLATERS.get() * INFLATER_NATIVE_BYTES;
+    }
+
+}
@@ -18,12 +18,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
-public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> {
+public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> implements StreamConnection {
 
     private ChannelHandlerContext ctx;
 
     private Consumer<Void> whenConnected;
     private Consumer<PacketBuffer> dataAcceptor;
+    private Consumer<Packet> packetAcceptor;
     private Consumer<Throwable> exceptionCallback;
     private Consumer<Void> disconnectCallback;
 
@@ -44,6 +45,7 @@ public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> {
         }
     }
 
+    @Override
     public void send( Packet packet ) {
         flush( new FlushItem( ctx.channel(), packet ) );
     }
@@ -71,7 +73,9 @@ public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> {
 
     @Override
     protected void channelRead0( ChannelHandlerContext channelHandlerContext, final Packet packet ) throws Exception {
-        if ( packet instanceof WrappedMCPEPacket ) {
+        if ( this.packetAcceptor != null ) {
+            this.packetAcceptor.accept( packet );
+        } else if ( packet instanceof WrappedMCPEPacket ) {
             this.dataAcceptor.accept( ( (WrappedMCPEPacket) packet ).getBuffer() );
         }
     }
@@ -83,10 +87,15 @@ public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> {
         }
     }
 
+    @Override
     public void onData( Consumer<PacketBuffer> consumer ) {
         this.dataAcceptor = consumer;
     }
 
+    public void onPacket( Consumer<Packet> consumer ) {
+        this.packetAcceptor = consumer;
+    }
+
     public void whenConnected( Consumer<Void> callback ) {
         this.whenConnected = callback;
     }
@@ -95,16 +104,15 @@ public class ConnectionHandler extends SimpleChannelInboundHandler<Packet> {
         this.exceptionCallback = callback;
     }
 
+    @Override
     public void whenDisconnected( Consumer<Void> callback ) {
         this.disconnectCallback = callback;
     }
 
+    @Override
     public void disconnect() {
-        try {
-            this.ctx.disconnect().sync();
-        } catch ( InterruptedException e ) {
-            e.printStackTrace();
-        }
+        // Don't wait for it, this may be called on the event loop of the channel
+        this.ctx.disconnect();
     }
 
     private static final class Flusher implements Runnable {
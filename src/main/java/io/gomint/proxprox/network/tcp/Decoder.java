@@ -1,15 +1,22 @@
 package io.gomint.proxprox.network.tcp;
 
+import io.gomint.proxprox.network.tcp.protocol.Packet;
+import io.gomint.proxprox.network.tcp.protocol.SessionClosePacket;
 import io.gomint.proxprox.network.tcp.protocol.WrappedMCPEPacket;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.EmptyByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import lombok.AllArgsConstructor;
 
 import java.util.List;
 
+@AllArgsConstructor
 public class Decoder extends ByteToMessageDecoder {
 
+    // Multiplexed links carry the packet id and session in front of every packet
+    private final boolean multiplexed;
+
     @Override
     protected void decode( ChannelHandlerContext channelHandlerContext, ByteBuf buf, List<Object> objects ) throws Exception {
         if ( buf instanceof EmptyByteBuf ) {
@@ -17,9 +24,35 @@ public class Decoder extends ByteToMessageDecoder {
             return;
         }
 
-        WrappedMCPEPacket wrappedMCPEPacket = new WrappedMCPEPacket();
-        wrappedMCPEPacket.read( buf );
-        objects.add( wrappedMCPEPacket );
+        if ( !this.multiplexed ) {
+            WrappedMCPEPacket wrappedMCPEPacket = new WrappedMCPEPacket();
+            wrappedMCPEPacket.read( buf );
+            objects.add( wrappedMCPEPacket );
+            return;
+        }
+
+        byte packetId = buf.readByte();
+        int sessionId = buf.readInt();
+
+        Packet packet;
+        switch ( packetId ) {
+            case WrappedMCPEPacket.ID:
+                packet = new WrappedMCPEPacket();
+                break;
+
+            case SessionClosePacket.ID:
+                packet = new SessionClosePacket();
+                break;
+
+            default:
+                // Unknown packet, skip its frame
+                buf.skipBytes( buf.readableBytes() );
+                return;
+        }
+
+        packet.setSessionId( sessionId );
+        packet.read( buf );
+        objects.add( packet );
     }
 
 }
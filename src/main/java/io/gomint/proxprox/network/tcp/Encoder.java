@@ -2,6 +2,7 @@ package io.gomint.proxprox.network.tcp;
 
 
 import io.gomint.proxprox.network.tcp.protocol.Packet;
+import io.gomint.proxprox.network.tcp.protocol.WrappedMCPEPacket;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
@@ -10,8 +11,28 @@ import lombok.AllArgsConstructor;
 @AllArgsConstructor
 public class Encoder extends MessageToByteEncoder<Packet> {
 
+    // Multiplexed links carry the packet id and session in front of every packet
+    private static final int MULTIPLEX_HEADER_LENGTH = 5;
+    private final boolean multiplexed;
+
+    @Override
+    protected ByteBuf allocateBuffer( ChannelHandlerContext ctx, Packet packet, boolean preferDirect ) throws Exception {
+        if ( !( packet instanceof WrappedMCPEPacket ) ) {
+            return super.allocateBuffer( ctx, packet, preferDirect );
+        }
+
+        // Allocate the exact size so the buffer never needs to grow (and copy) while writing
+        int size = ( (WrappedMCPEPacket) packet ).getSize() + ( this.multiplexed ? MULTIPLEX_HEADER_LENGTH : 0 );
+        return preferDirect ? ctx.alloc().ioBuffer( size ) : ctx.alloc().heapBuffer( size );
+    }
+
     @Override
     protected void encode( ChannelHandlerContext channelHandlerContext, Packet packet, ByteBuf buf ) throws Exception {
+        if ( this.multiplexed ) {
+            buf.writeByte( packet.getId() );
+            buf.writeInt( packet.getSessionId() );
+        }
+
         packet.write( buf );
     }
 
@@ -20,6 +20,10 @@ public class Initializer {
     }
 
     public static Bootstrap buildBootstrap( String name, final Consumer<ConnectionHandler> connectionHandlerCallback ) {
+        return buildBootstrap( name, false, connectionHandlerCallback );
+    }
+
+    public static Bootstrap buildBootstrap( String name, final boolean multiplexed, final Consumer<ConnectionHandler> connectionHandlerCallback ) {
         final ConnectionHandler connectionHandler = new ConnectionHandler();
 
         final Bootstrap b = new Bootstrap()
@@ -29,7 +33,7 @@ public class Initializer {
                               @Override
                               public void initChannel( SocketChannel ch ) throws Exception {
                                   ch.config().setOption( ChannelOption.IP_TOS, 0x18 );
-                                  Pipeline.prepare( ch.pipeline(), connectionHandler );
+                                  Pipeline.prepare( ch.pipeline(), connectionHandler, multiplexed );
                               }
                           }
                 );
@@ -0,0 +1,271 @@
+package io.gomint.proxprox.network.tcp;
+
+import io.gomint.jraknet.PacketBuffer;
+import io.gomint.proxprox.network.tcp.protocol.Packet;
+import io.gomint.proxprox.network.tcp.protocol.SessionClosePacket;
+import io.gomint.proxprox.network.tcp.protocol.WrappedMCPEPacket;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * One persistent TCP connection to a server which carries the streams of all players on that server. Every
+ * player gets its own session id which is sent in front of each packet. A session is opened by its first packet
+ * and closed by a {@link SessionClosePacket} from either side.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class MultiplexedLink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( MultiplexedLink.class );
+    private static final ConcurrentMap<String, MultiplexedLink> LINKS = new ConcurrentHashMap<>();
+
+    private final String ip;
+    private final int port;
+    private final AtomicInteger sessionIds = new AtomicInteger( 0 );
+    private final ConcurrentMap<Integer, Session> sessions = new ConcurrentHashMap<>();
+
+    // Sessions which wait for the link to connect
+    private final List<PendingSession> pending = new ArrayList<>();
+    private ConnectionHandler connectionHandler;
+    private boolean connecting;
+    private boolean closed;
+
+    private MultiplexedLink( String ip, int port ) {
+        this.ip = ip;
+        this.port = port;
+    }
+
+    /**
+     * Open a new session to the given server. The link to the server gets created when there is none yet.
+     *
+     * @param ip             The ip of the server
+     * @param port           The port of the server
+     * @param connectTimeout Time in milliseconds a new link may take to connect, 0 for the default of netty
+     * @param onOpen         Called with the session once it can be used
+     * @param onFailure      Called when the server could not be reached
+     */
+    public static void openSession( String ip, int port, int connectTimeout, Consumer<StreamConnection> onOpen, Consumer<Throwable> onFailure ) {
+        String key = ip + ":" + port;
+        while ( true ) {
+            MultiplexedLink link = LINKS.get( key );
+            if ( link == null ) {
+                MultiplexedLink newLink = new MultiplexedLink( ip, port );
+                link = LINKS.putIfAbsent( key, newLink );
+                if ( link == null ) {
+                    link = newLink;
+                }
+            }
+
+            // A link which has just been closed can't take new sessions, the next round creates a new one
+            if ( link.open( connectTimeout, onOpen, onFailure ) ) {
+                return;
+            }
+
+            LINKS.remove( key, link );
+        }
+    }
+
+    private boolean open( int connectTimeout, final Consumer<StreamConnection> onOpen, Consumer<Throwable> onFailure ) {
+        final Session session;
+        synchronized ( this ) {
+            if ( this.closed ) {
+                return false;
+            }
+
+            if ( this.connectionHandler == null ) {
+                this.pending.add( new PendingSession( onOpen, onFailure ) );
+                if ( !this.connecting ) {
+                    this.connecting = true;
+                    this.connect( connectTimeout );
+                }
+
+                return true;
+            }
+
+            // Sessions need to be created while holding the lock so closing the link can't miss them
+            session = this.createSession( this.connectionHandler );
+        }
+
+        // The link is up, no need to wait for anything
+        session.connectionHandler.getChannel().eventLoop().execute( new Runnable() {
+            @Override
+            public void run() {
+                onOpen.accept( session );
+            }
+        } );
+
+        return true;
+    }
+
+    private void connect( int connectTimeout ) {
+        LOGGER.info( "Opening multiplexed link to " + this.ip + ":" + this.port );
+
+        Bootstrap bootstrap = Initializer.buildBootstrap( "Link -> " + this.ip + ":" + this.port, true, new Consumer<ConnectionHandler>() {
+            @Override
+            public void accept( ConnectionHandler connectionHandler ) {
+                onConnected( connectionHandler );
+            }
+        } );
+
+        if ( connectTimeout > 0 ) {
+            bootstrap.option( ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout );
+        }
+
+        ChannelFuture future = bootstrap.connect( this.ip, this.port );
+
+        future.addListener( new ChannelFutureListener() {
+            @Override
+            public void operationComplete( ChannelFuture channelFuture ) throws Exception {
+                if ( !channelFuture.isSuccess() ) {
+                    LOGGER.warn( "Could not open multiplexed link to " + ip + ":" + port, channelFuture.cause() );
+                    onClosed( channelFuture.cause() );
+                }
+            }
+        } );
+    }
+
+    private void onConnected( ConnectionHandler connectionHandler ) {
+        connectionHandler.onPacket( new Consumer<Packet>() {
+            @Override
+            public void accept( Packet packet ) {
+                handlePacket( packet );
+            }
+        } );
+
+        connectionHandler.whenDisconnected( new Consumer<Void>() {
+            @Override
+            public void accept( Void aVoid ) {
+                LOGGER.info( "Multiplexed link to " + ip + ":" + port + " has been closed" );
+                onClosed( null );
+            }
+        } );
+
+        List<PendingSession> waiting;
+        List<Session> opened = new ArrayList<>();
+        synchronized ( this ) {
+            this.connectionHandler = connectionHandler;
+            waiting = new ArrayList<>( this.pending );
+            this.pending.clear();
+
+            for ( int i = 0; i < waiting.size(); i++ ) {
+                opened.add( this.createSession( connectionHandler ) );
+            }
+        }
+
+        for ( int i = 0; i < waiting.size(); i++ ) {
+            waiting.get( i ).onOpen.accept( opened.get( i ) );
+        }
+    }
+
+    private void onClosed( Throwable cause ) {
+        List<PendingSession> waiting;
+        synchronized ( this ) {
+            this.closed = true;
+            waiting = new ArrayList<>( this.pending );
+            this.pending.clear();
+        }
+
+        LINKS.remove( this.ip + ":" + this.port, this );
+
+        for ( PendingSession pendingSession : waiting ) {
+            pendingSession.onFailure.accept( cause );
+        }
+
+        for ( Session session : this.sessions.values() ) {
+            session.closed();
+        }
+    }
+
+    private Session createSession( ConnectionHandler connectionHandler ) {
+        Session session = new Session( this.sessionIds.incrementAndGet(), connectionHandler );
+        this.sessions.put( session.id, session );
+        return session;
+    }
+
+    private void handlePacket( Packet packet ) {
+        Session session = this.sessions.get( packet.getSessionId() );
+        if ( session == null ) {
+            return;
+        }
+
+        // This thread serves every player on the link so it only demultiplexes, the acceptors hand the data over
+        // to the thread of their player
+        if ( packet instanceof WrappedMCPEPacket ) {
+            if ( session.dataAcceptor != null ) {
+                session.dataAcceptor.accept( ( (WrappedMCPEPacket) packet ).getBuffer() );
+            }
+        } else if ( packet instanceof SessionClosePacket ) {
+            session.closed();
+        }
+    }
+
+    private static final class PendingSession {
+
+        private final Consumer<StreamConnection> onOpen;
+        private final Consumer<Throwable> onFailure;
+
+        private PendingSession( Consumer<StreamConnection> onOpen, Consumer<Throwable> onFailure ) {
+            this.onOpen = onOpen;
+            this.onFailure = onFailure;
+        }
+
+    }
+
+    private final class Session implements StreamConnection {
+
+        private final int id;
+        private final ConnectionHandler connectionHandler;
+        private volatile Consumer<PacketBuffer> dataAcceptor;
+        private volatile Consumer<Void> disconnectCallback;
+
+        private Session( int id, ConnectionHandler connectionHandler ) {
+            this.id = id;
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public void send( Packet packet ) {
+            packet.setSessionId( this.id );
+            this.connectionHandler.send( packet );
+        }
+
+        @Override
+        public void onData( Consumer<PacketBuffer> consumer ) {
+            this.dataAcceptor = consumer;
+        }
+
+        @Override
+        public void whenDisconnected( Consumer<Void> callback ) {
+            this.disconnectCallback = callback;
+        }
+
+        @Override
+        public void disconnect() {
+            if ( sessions.containsKey( this.id ) ) {
+                SessionClosePacket packet = new SessionClosePacket();
+                this.send( packet );
+                this.closed();
+            }
+        }
+
+        private void closed() {
+            if ( sessions.remove( this.id, this ) && this.disconnectCallback != null ) {
+                this.disconnectCallback.accept( null );
+            }
+        }
+
+    }
+
+}
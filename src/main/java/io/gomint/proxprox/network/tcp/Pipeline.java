@@ -37,10 +37,14 @@ public class Pipeline {
     }
 
     public static void prepare( ChannelPipeline pipeline, ConnectionHandler connectionHandler ) {
+        prepare( pipeline, connectionHandler, false );
+    }
+
+    public static void prepare( ChannelPipeline pipeline, ConnectionHandler connectionHandler, boolean multiplexed ) {
         pipeline.addLast( FRAME_DECODER, new LengthFieldBasedFrameDecoder( Integer.MAX_VALUE, 0, 4, 0, 4 ) );
-        pipeline.addLast( PACKET_DECODER, new Decoder() );
+        pipeline.addLast( PACKET_DECODER, new Decoder( multiplexed ) );
         pipeline.addLast( FRAME_PREPENDER, new LengthFieldPrepender( 4 ) );
-        pipeline.addLast( PACKET_ENCODER, new Encoder() );
+        pipeline.addLast( PACKET_ENCODER, new Encoder( multiplexed ) );
         pipeline.addLast( CONNECTION_HANDLER, connectionHandler );
     }
 
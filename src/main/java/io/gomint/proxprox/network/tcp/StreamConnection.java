@@ -0,0 +1,25 @@
+package io.gomint.proxprox.network.tcp;
+
+import io.gomint.jraknet.PacketBuffer;
+import io.gomint.proxprox.network.tcp.protocol.Packet;
+
+import java.util.function.Consumer;
+
+/**
+ * A TCP stream of a single player to a server. This is either a own TCP connection or a session on a
+ * {@link MultiplexedLink}.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public interface StreamConnection {
+
+    void send( Packet packet );
+
+    void onData( Consumer<PacketBuffer> consumer );
+
+    void whenDisconnected( Consumer<Void> callback );
+
+    void disconnect();
+
+}
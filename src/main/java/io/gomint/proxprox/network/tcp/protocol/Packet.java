@@ -3,6 +3,7 @@ package io.gomint.proxprox.network.tcp.protocol;
 import io.netty.buffer.ByteBuf;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 /**
  * @author geNAZt
@@ -14,6 +15,11 @@ public abstract class Packet {
     @Getter
     private final byte id;
 
+    // Session on a multiplexed link this packet belongs to, not used on links of a single player
+    @Getter
+    @Setter
+    private int sessionId;
+
     public abstract void read( ByteBuf buf );
     public abstract void write( ByteBuf buf );
 
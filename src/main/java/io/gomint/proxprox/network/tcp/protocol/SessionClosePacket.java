@@ -0,0 +1,29 @@
+package io.gomint.proxprox.network.tcp.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Closes a session on a multiplexed link. Both sides send it when the player of the session is gone.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class SessionClosePacket extends Packet {
+
+    public static final byte ID = 0x02;
+
+    public SessionClosePacket() {
+        super( ID );
+    }
+
+    @Override
+    public void read( ByteBuf buf ) {
+
+    }
+
+    @Override
+    public void write( ByteBuf buf ) {
+
+    }
+
+}
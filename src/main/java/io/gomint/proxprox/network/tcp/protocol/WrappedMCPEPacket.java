@@ -2,8 +2,10 @@ package io.gomint.proxprox.network.tcp.protocol;
 
 import io.gomint.jraknet.PacketBuffer;
 import io.netty.buffer.ByteBuf;
+import lombok.AccessLevel;
 import lombok.Data;
-import java.util.Arrays;
+import lombok.Getter;
+import lombok.Setter;
 
 /**
  * @author geNAZt
@@ -12,14 +14,58 @@ import java.util.Arrays;
 @Data
 public class WrappedMCPEPacket extends Packet {
 
+    public static final byte ID = 0x01;
+    private static final int MCPE_HEADER_LENGTH = 3;
+
     private PacketBuffer buffer;
 
+    // Packet data which gets written behind a MCPE header without being copied into a buffer first
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private byte packetId;
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private byte[] payload;
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private int payloadOffset, payloadLength;
+
     public WrappedMCPEPacket() {
-        super( (byte) 0x01 );
+        super( ID );
+    }
+
+    /**
+     * Set the packet which should be sent. The header gets written by the encoder, the payload array is read by the
+     * encoder later on and must not be changed after this.
+     *
+     * @param packetId The id of the MCPE packet
+     * @param payload  The array which holds the data of the packet behind the header
+     * @param offset   The offset at which the data starts
+     * @param length   The length of the data
+     */
+    public void setPayload( byte packetId, byte[] payload, int offset, int length ) {
+        this.packetId = packetId;
+        this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+    }
+
+    /**
+     * Get the amount of bytes {@link #write(ByteBuf)} is going to write
+     *
+     * @return size of the encoded packet
+     */
+    public int getSize() {
+        if ( this.payload != null ) {
+            return MCPE_HEADER_LENGTH + this.payloadLength;
+        }
+
+        return this.buffer.getPosition() - this.buffer.getBufferOffset();
     }
 
     @Override
     public void read( ByteBuf buf ) {
+        // PacketBuffer can only work on arrays, this is the only copy of incoming data
         byte[] data = new byte[buf.readableBytes()];
         buf.readBytes( data );
         this.buffer = new PacketBuffer( data, 0 );
@@ -27,7 +73,14 @@ public class WrappedMCPEPacket extends Packet {
 
     @Override
     public void write( ByteBuf buf ) {
-        buf.writeBytes( Arrays.copyOf( this.buffer.getBuffer(), this.buffer.getPosition() ) );
+        if ( this.payload != null ) {
+            buf.writeByte( this.packetId );
+            buf.writeShort( 0 );
+            buf.writeBytes( this.payload, this.payloadOffset, this.payloadLength );
+            return;
+        }
+
+        buf.writeBytes( this.buffer.getBuffer(), this.buffer.getBufferOffset(), this.buffer.getPosition() - this.buffer.getBufferOffset() );
     }
 
 }
@@ -9,10 +9,6 @@ import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * @author geNAZt
  * @version 1.0
@@ -21,19 +17,56 @@ import java.util.concurrent.atomic.AtomicLong;
 public class EntityRewriter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger( EntityRewriter.class );
+    private static final long NO_ENTITY = Long.MIN_VALUE;
+    private static final int EXPECTED_ENTITIES = 256;
 
     @Setter private Debugger debugger;
     @Getter private final long ownId;
-    @Getter @Setter private long currentDownStreamId;
-    private AtomicLong idCounter = new AtomicLong( 0 );
+    @Getter private long currentDownStreamId;
+    private long idCounter = 0;
+
+    // As long as the player is on the first server the client uses the same ids as the server
+    private boolean identity = true;
+    private int startedGames = 0;
+
+    // Up- and downstream of a player are handled on the same reader shard, so both maps are only ever accessed
+    // by that thread and need no lock
+    private final LongLongMap rewriteIds = new LongLongMap( EXPECTED_ENTITIES );
+    private final LongLongMap serverRewriteIds = new LongLongMap( EXPECTED_ENTITIES );
+
+    /**
+     * Set the id the current downstream server uses for the player. Every call after the first one
+     * means that the player switched servers, from then on colliding ids get translated.
+     *
+     * @param currentDownStreamId The runtime entity id of the player on the current downstream server
+     */
+    public void setCurrentDownStreamId( long currentDownStreamId ) {
+        if ( this.startedGames++ > 0 ) {
+            this.identity = false;
+        }
 
-    private Map<Long, Long> rewriteIds = new ConcurrentHashMap<>();
-    private Map<Long, Long> serverRewriteIds = new ConcurrentHashMap<>();
+        this.currentDownStreamId = currentDownStreamId;
+    }
+
+    /**
+     * Check if this rewriter still uses the server ids for the client without translating them
+     *
+     * @return true when the player did not switch servers yet
+     */
+    public boolean isIdentity() {
+        return this.identity;
+    }
 
     public long addEntity( String from, long entityID ) {
-        long newEntityId = this.idCounter.incrementAndGet();
-        if ( newEntityId == this.ownId ) {
-            newEntityId = this.idCounter.incrementAndGet();
+        if ( this.identity ) {
+            this.debugger.addEntity( from, entityID, entityID );
+            return entityID;
+        }
+
+        // Only translate when the id is already used on the client
+        long newEntityId = entityID;
+        while ( this.isUsedByClient( newEntityId ) ) {
+            newEntityId = ++this.idCounter;
         }
 
         this.debugger.addEntity( from, entityID, newEntityId );
@@ -43,7 +76,41 @@ public class EntityRewriter {
         return newEntityId;
     }
 
+    /**
+     * Check if packets with the given id contain entity ids which need to be rewritten when sent to the client
+     *
+     * @param packetId The id of the packet
+     * @return true when {@link #rewriteServerToClient(String, byte, int, PacketBuffer)} needs to see this packet
+     */
+    public boolean rewritesServerToClient( byte packetId ) {
+        if ( this.identity ) {
+            return false;
+        }
+
+        switch ( packetId ) {
+            case 0x28:  // Entity motion
+            case 0x1f:  // Mob equip
+            case 0x20:  // Mob Armor
+            case 0x12:  // Entity move
+            case 0x13:  // Move player
+            case 0x1B:  // Entity event
+            case 0x27:  // Entity metadata
+            case 0x1D:  // Update attributes
+            case 0x1C:  // Mob effect
+            case 0x2C:  // Animation
+            case 0x11:  // Pickup entity
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
     public PacketBuffer rewriteServerToClient( String from, byte packetId, int pos, PacketBuffer buffer ) {
+        if ( this.identity ) {
+            return buffer;
+        }
+
         // Entity ID rewrites
         long entityId;
         switch ( packetId ) {
@@ -56,19 +123,12 @@ public class EntityRewriter {
             case 0x27:  // Entity metadata
             case 0x1D:  // Update attributes
             case 0x1C:  // Mob effect
+                int start = buffer.getPosition();
                 entityId = buffer.readUnsignedVarLong();
                 long replacementID = getReplacementId( entityId );
 
                 if ( entityId != replacementID ) {
-                    byte[] data = new byte[buffer.getRemaining()];
-                    buffer.readBytes( data );
-
-                    buffer = new PacketBuffer( 8 );
-                    buffer.writeUnsignedVarLong( replacementID );
-                    buffer.writeBytes( data );
-                    buffer.resetPosition();
-
-
+                    buffer = replaceVarLong( buffer, pos, start, replacementID );
                     this.debugger.addEntityRewrite( from, "UpStream", packetId, entityId, replacementID );
                 } else {
                     buffer.setPosition( pos );
@@ -77,21 +137,14 @@ public class EntityRewriter {
                 break;
 
             case 0x2C:  // Animation
-                int actionId = buffer.readSignedVarInt();
+                buffer.readSignedVarInt();
 
+                start = buffer.getPosition();
                 entityId = buffer.readUnsignedVarLong();
                 replacementID = getReplacementId( entityId );
 
                 if ( entityId != replacementID ) {
-                    byte[] data = new byte[buffer.getRemaining()];
-                    buffer.readBytes( data );
-
-                    buffer = new PacketBuffer( 8 );
-                    buffer.writeSignedVarInt( actionId );
-                    buffer.writeUnsignedVarLong( replacementID );
-                    buffer.writeBytes( data );
-                    buffer.resetPosition();
-
+                    buffer = replaceVarLong( buffer, pos, start, replacementID );
                     this.debugger.addEntityRewrite( from, "UpStream", packetId, entityId, replacementID );
                 } else {
                     buffer.setPosition( pos );
@@ -120,12 +173,17 @@ public class EntityRewriter {
     }
 
     public long getReplacementId( long entityId ) {
+        if ( this.identity ) {
+            return entityId;
+        }
+
         if ( entityId == this.currentDownStreamId ) {
             return this.ownId;
         }
 
-        Long rewrite = this.rewriteIds.get( entityId );
-        if ( rewrite == null ) {
+        long rewrite = this.rewriteIds.get( entityId, NO_ENTITY );
+
+        if ( rewrite == NO_ENTITY ) {
             LOGGER.warn( "Got entity packet for entity not spawned yet: " + entityId );
             return entityId;
         }
@@ -138,21 +196,28 @@ public class EntityRewriter {
             return this.currentDownStreamId;
         }
 
-        Long rewriteId = this.serverRewriteIds.get( entityId );
-        if ( rewriteId == null ) {
-            LOGGER.error( "Did not find replacement id for " + entityId );
+        long rewriteId = this.serverRewriteIds.get( entityId, NO_ENTITY );
+        if ( rewriteId != NO_ENTITY ) {
+            return rewriteId;
+        }
 
-            for ( Map.Entry<Long, Long> longLongEntry : this.serverRewriteIds.entrySet() ) {
-                LOGGER.info( "Found " + longLongEntry.getKey() + " -> " + longLongEntry.getValue() );
-            }
+        LOGGER.error( "Did not find replacement id for " + entityId );
 
-            return entityId;
-        }
+        this.serverRewriteIds.forEach( new LongLongMap.EntryConsumer() {
+            @Override
+            public void accept( long key, long value ) {
+                LOGGER.info( "Found " + key + " -> " + value );
+            }
+        } );
 
-        return rewriteId;
+        return entityId;
     }
 
     public PacketBuffer rewriteClientToServer( String to, byte packetId, int pos, PacketBuffer buffer ) {
+        if ( this.identity ) {
+            return buffer;
+        }
+
         long entityId;
 
         switch ( packetId ) {
@@ -162,18 +227,12 @@ public class EntityRewriter {
             case 0x27: // Entity metadata
             case 0x1B: // Entity Event
             case 0x24: // Player action
+                int start = buffer.getPosition();
                 entityId = buffer.readUnsignedVarLong();
                 long replacementID = getReplacementIdForServer( entityId );
 
                 if ( entityId != replacementID ) {
-                    byte[] data = new byte[buffer.getRemaining()];
-                    buffer.readBytes( data );
-
-                    buffer = new PacketBuffer( 8 );
-                    buffer.writeUnsignedVarLong( replacementID );
-                    buffer.writeBytes( data );
-                    buffer.resetPosition();
-
+                    buffer = replaceVarLong( buffer, pos, start, replacementID );
                     this.debugger.addEntityRewrite( "UpStream", to, packetId, entityId, replacementID );
                 } else {
                     buffer.setPosition( pos );
@@ -182,16 +241,13 @@ public class EntityRewriter {
                 break;
 
             case 0x2c:  // Animate
-                int actionId = buffer.readSignedVarInt();
+                buffer.readSignedVarInt();
+                start = buffer.getPosition();
                 entityId = buffer.readUnsignedVarLong();
                 replacementID = getReplacementIdForServer( entityId );
 
                 if ( entityId != replacementID ) {
-                    buffer = new PacketBuffer( 6 );
-                    buffer.writeSignedVarInt( actionId );
-                    buffer.writeUnsignedVarLong( replacementID );
-                    buffer.resetPosition();
-
+                    buffer = replaceVarLong( buffer, pos, start, replacementID );
                     this.debugger.addEntityRewrite( "UpStream", to, packetId, entityId, replacementID );
                 } else {
                     buffer.setPosition( pos );
@@ -200,23 +256,16 @@ public class EntityRewriter {
                 break;
 
             case 0x21:  // Interact
-                byte action = buffer.readByte();
+                buffer.readByte();
+                start = buffer.getPosition();
                 entityId = buffer.readUnsignedVarLong();
 
                 // Special case id 0 (own reference)
                 if ( entityId != 0 ) {
                     replacementID = getReplacementIdForServer( entityId );
 
-                    byte[] data = new byte[buffer.getRemaining()];
-                    buffer.readBytes( data );
-
                     if ( entityId != replacementID ) {
-                        buffer = new PacketBuffer( 6 );
-                        buffer.writeByte( action );
-                        buffer.writeUnsignedVarLong( replacementID );
-                        buffer.writeBytes( data );
-                        buffer.resetPosition();
-
+                        buffer = replaceVarLong( buffer, pos, start, replacementID );
                         this.debugger.addEntityRewrite( "UpStream", to, packetId, entityId, replacementID );
                     } else {
                         buffer.setPosition( pos );
@@ -253,22 +302,88 @@ public class EntityRewriter {
     public long removeEntity( String from, long entityId ) {
         this.debugger.removeEntity( from, entityId );
 
-        Long newEntity = this.rewriteIds.remove( entityId );
-        if ( newEntity == null ) {
+        if ( this.identity ) {
+            return entityId;
+        }
+
+        long newEntity = this.rewriteIds.remove( entityId, NO_ENTITY );
+        if ( newEntity == NO_ENTITY ) {
             return entityId;
         }
 
-        this.serverRewriteIds.remove( newEntity );
+        this.serverRewriteIds.remove( newEntity, NO_ENTITY );
         return newEntity;
     }
 
     public void removeServerEntity( long entityId ) {
         this.debugger.removeEntity( "UpStream", entityId );
 
-        Long oldId = this.serverRewriteIds.remove( entityId );
-        if ( oldId != null ) {
-            this.rewriteIds.remove( oldId );
+        long oldId = this.serverRewriteIds.remove( entityId, NO_ENTITY );
+        if ( oldId != NO_ENTITY ) {
+            this.rewriteIds.remove( oldId, NO_ENTITY );
+        }
+    }
+
+    /**
+     * Replace the unsigned var long which has just been read from the buffer. When the new value has the same
+     * encoded length the bytes get overwritten in place. Otherwise the packet data in front of the var long gets
+     * moved into the already consumed header bytes, only when there is no room for that the packet gets copied once.
+     *
+     * @param buffer The buffer which is positioned directly behind the var long
+     * @param pos    The position at which the packet data starts
+     * @param start  The position at which the var long starts
+     * @param value  The new value of the var long
+     * @return buffer which is positioned at the start of the rewritten packet data
+     */
+    private PacketBuffer replaceVarLong( PacketBuffer buffer, int pos, int start, long value ) {
+        byte[] data = buffer.getBuffer();
+        int end = buffer.getPosition();
+        int diff = getVarLongSize( value ) - ( end - start );
+
+        if ( diff == 0 ) {
+            writeVarLong( data, start, value );
+            buffer.setPosition( pos );
+            return buffer;
+        }
+
+        int newPos = pos - diff;
+        if ( newPos >= buffer.getBufferOffset() ) {
+            System.arraycopy( data, pos, data, newPos, start - pos );
+            writeVarLong( data, start - diff, value );
+            buffer.setPosition( newPos );
+            return buffer;
+        }
+
+        int prefix = start - pos;
+        int remaining = buffer.getRemaining();
+        byte[] newData = new byte[end - pos + diff + remaining];
+        System.arraycopy( data, pos, newData, 0, prefix );
+        writeVarLong( newData, prefix, value );
+        System.arraycopy( data, end, newData, newData.length - remaining, remaining );
+        return new PacketBuffer( newData, 0 );
+    }
+
+    private static int getVarLongSize( long value ) {
+        int size = 1;
+        while ( ( value & ~0x7FL ) != 0 ) {
+            value >>>= 7;
+            size++;
         }
+
+        return size;
+    }
+
+    private static void writeVarLong( byte[] data, int offset, long value ) {
+        while ( ( value & ~0x7FL ) != 0 ) {
+            data[offset++] = (byte) ( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+
+        data[offset] = (byte) value;
+    }
+
+    private boolean isUsedByClient( long entityId ) {
+        return entityId == this.ownId || this.serverRewriteIds.containsKey( entityId );
     }
 
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with fixed buckets for durations, by default between a few microseconds and some milliseconds
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+    // Upper bounds of the buckets in microseconds, the last bucket holds everything above
+    private static final long[] DEFAULT_BOUNDS = new long[]{ 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000 };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+
+    /**
+     * Create a histogram with buckets from 50 microseconds up to 25 milliseconds
+     */
+    public LatencyHistogram() {
+        this( DEFAULT_BOUNDS );
+    }
+
+    /**
+     * Create a histogram with custom buckets
+     *
+     * @param bounds The ascending upper bounds of the buckets in microseconds
+     */
+    public LatencyHistogram( long... bounds ) {
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray( bounds.length + 1 );
+    }
+
+    /**
+     * Count a duration
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void record( long nanos ) {
+        long micros = TimeUnit.NANOSECONDS.toMicros( nanos );
+
+        int bucket = 0;
+        while ( bucket < this.bounds.length && micros >= this.bounds[bucket] ) {
+            bucket++;
+        }
+
+        this.counts.incrementAndGet( bucket );
+    }
+
+    /**
+     * Get the amount of recorded durations
+     *
+     * @return amount of durations
+     */
+    public long getCount() {
+        long count = 0;
+        for ( int i = 0; i < this.counts.length(); i++ ) {
+            count += this.counts.get( i );
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for ( int i = 0; i < this.counts.length(); i++ ) {
+            if ( i > 0 ) {
+                builder.append( ", " );
+            }
+
+            builder.append( i < this.bounds.length ? "<" + formatMicros( this.bounds[i] ) : ">=" + formatMicros( this.bounds[this.bounds.length - 1] ) )
+                    .append( ": " ).append( this.counts.get( i ) );
+        }
+
+        return builder.toString();
+    }
+
+    private static String formatMicros( long micros ) {
+        return micros < 1000 ? micros + "us" : ( micros / 1000.0 ) + "ms";
+    }
+
+}
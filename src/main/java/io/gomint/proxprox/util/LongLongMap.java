@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to long which does not box its keys or values and does not allocate
+ * anything besides growing its tables. This map is not thread safe, callers need to make sure that only one
+ * thread accesses it at a time.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class LongLongMap {
+
+    /**
+     * Callback for iterating over all entries of a map
+     */
+    public interface EntryConsumer {
+
+        /**
+         * Accept one entry of the map
+         *
+         * @param key   The key of the entry
+         * @param value The value of the entry
+         */
+        void accept( long key, long value );
+
+    }
+
+    private static final int MIN_CAPACITY = 8;
+
+    // 0 marks free slots in the tables, so the key 0 is stored separately
+    private long[] keys;
+    private long[] values;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * Create a new map which can hold the given amount of entries before it needs to grow
+     *
+     * @param expectedSize The amount of entries which is expected
+     */
+    public LongLongMap( int expectedSize ) {
+        int capacity = MIN_CAPACITY;
+        while ( capacity < expectedSize * 2 ) {
+            capacity <<= 1;
+        }
+
+        this.allocate( capacity );
+    }
+
+    /**
+     * Get the value stored for the given key
+     *
+     * @param key          The key to look up
+     * @param missingValue The value which should be returned when there is no entry for the key
+     * @return the stored value or missingValue
+     */
+    public long get( long key, long missingValue ) {
+        if ( key == 0 ) {
+            return this.hasZeroKey ? this.zeroValue : missingValue;
+        }
+
+        int index = this.index( key );
+        while ( true ) {
+            long current = this.keys[index];
+            if ( current == key ) {
+                return this.values[index];
+            }
+
+            if ( current == 0 ) {
+                return missingValue;
+            }
+
+            index = ( index + 1 ) & this.mask;
+        }
+    }
+
+    /**
+     * Check if there is a entry for the given key
+     *
+     * @param key The key to look up
+     * @return true when there is a entry, false if not
+     */
+    public boolean containsKey( long key ) {
+        if ( key == 0 ) {
+            return this.hasZeroKey;
+        }
+
+        int index = this.index( key );
+        while ( true ) {
+            long current = this.keys[index];
+            if ( current == key ) {
+                return true;
+            }
+
+            if ( current == 0 ) {
+                return false;
+            }
+
+            index = ( index + 1 ) & this.mask;
+        }
+    }
+
+    /**
+     * Store a value for the given key. A existing value will be overwritten.
+     *
+     * @param key   The key of the entry
+     * @param value The value of the entry
+     */
+    public void put( long key, long value ) {
+        if ( key == 0 ) {
+            if ( !this.hasZeroKey ) {
+                this.hasZeroKey = true;
+                this.size++;
+            }
+
+            this.zeroValue = value;
+            return;
+        }
+
+        int index = this.index( key );
+        while ( true ) {
+            long current = this.keys[index];
+            if ( current == key ) {
+                this.values[index] = value;
+                return;
+            }
+
+            if ( current == 0 ) {
+                this.keys[index] = key;
+                this.values[index] = value;
+
+                if ( ++this.size > this.resizeThreshold ) {
+                    this.allocate( this.keys.length << 1 );
+                }
+
+                return;
+            }
+
+            index = ( index + 1 ) & this.mask;
+        }
+    }
+
+    /**
+     * Remove the entry for the given key
+     *
+     * @param key          The key of the entry which should be removed
+     * @param missingValue The value which should be returned when there is no entry for the key
+     * @return the value which has been removed or missingValue
+     */
+    public long remove( long key, long missingValue ) {
+        if ( key == 0 ) {
+            if ( !this.hasZeroKey ) {
+                return missingValue;
+            }
+
+            this.hasZeroKey = false;
+            this.size--;
+            return this.zeroValue;
+        }
+
+        int index = this.index( key );
+        while ( true ) {
+            long current = this.keys[index];
+            if ( current == 0 ) {
+                return missingValue;
+            }
+
+            if ( current == key ) {
+                break;
+            }
+
+            index = ( index + 1 ) & this.mask;
+        }
+
+        long oldValue = this.values[index];
+
+        // Shift following entries back so lookups don't stop at the now free slot
+        int gap = index;
+        int next = ( gap + 1 ) & this.mask;
+        while ( this.keys[next] != 0 ) {
+            int ideal = this.index( this.keys[next] );
+            boolean canMove = gap <= next ? ( ideal <= gap || ideal > next ) : ( ideal <= gap && ideal > next );
+            if ( canMove ) {
+                this.keys[gap] = this.keys[next];
+                this.values[gap] = this.values[next];
+                gap = next;
+            }
+
+            next = ( next + 1 ) & this.mask;
+        }
+
+        this.keys[gap] = 0;
+        this.values[gap] = 0;
+        this.size--;
+        return oldValue;
+    }
+
+    /**
+     * Call the consumer for every entry of this map
+     *
+     * @param consumer The consumer which should get all entries
+     */
+    public void forEach( EntryConsumer consumer ) {
+        if ( this.hasZeroKey ) {
+            consumer.accept( 0, this.zeroValue );
+        }
+
+        for ( int i = 0; i < this.keys.length; i++ ) {
+            if ( this.keys[i] != 0 ) {
+                consumer.accept( this.keys[i], this.values[i] );
+            }
+        }
+    }
+
+    /**
+     * Remove all entries of this map. The tables keep their size.
+     */
+    public void clear() {
+        Arrays.fill( this.keys, 0 );
+        Arrays.fill( this.values, 0 );
+        this.hasZeroKey = false;
+        this.size = 0;
+    }
+
+    /**
+     * Get the amount of entries in this map
+     *
+     * @return amount of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private int index( long key ) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) ( hash ^ ( hash >>> 32 ) ) & this.mask;
+    }
+
+    private void allocate( int capacity ) {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+        this.resizeThreshold = capacity >> 1;
+
+        if ( oldKeys != null ) {
+            for ( int i = 0; i < oldKeys.length; i++ ) {
+                long key = oldKeys[i];
+                if ( key != 0 ) {
+                    int index = this.index( key );
+                    while ( this.keys[index] != 0 ) {
+                        index = ( index + 1 ) & this.mask;
+                    }
+
+                    this.keys[index] = key;
+                    this.values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.util;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Set of longs which does not box its elements. Like {@link LongLongMap} this set is not thread safe.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+public class LongSet {
+
+    private final LongLongMap map;
+
+    /**
+     * Create a new set which can hold the given amount of elements before it needs to grow
+     *
+     * @param expectedSize The amount of elements which is expected
+     */
+    public LongSet( int expectedSize ) {
+        this.map = new LongLongMap( expectedSize );
+    }
+
+    /**
+     * Add a element to this set
+     *
+     * @param value The element which should be added
+     */
+    public void add( long value ) {
+        this.map.put( value, value );
+    }
+
+    /**
+     * Remove a element from this set
+     *
+     * @param value The element which should be removed
+     * @return true when the element was in this set, false if not
+     */
+    public boolean remove( long value ) {
+        if ( !this.map.containsKey( value ) ) {
+            return false;
+        }
+
+        this.map.remove( value, 0 );
+        return true;
+    }
+
+    /**
+     * Check if the given element is in this set
+     *
+     * @param value The element to look up
+     * @return true when the element is in this set, false if not
+     */
+    public boolean contains( long value ) {
+        return this.map.containsKey( value );
+    }
+
+    /**
+     * Call the consumer for every element of this set
+     *
+     * @param consumer The consumer which should get all elements
+     */
+    public void forEach( final LongConsumer consumer ) {
+        this.map.forEach( new LongLongMap.EntryConsumer() {
+            @Override
+            public void accept( long key, long value ) {
+                consumer.accept( key );
+            }
+        } );
+    }
+
+    /**
+     * Get the amount of elements in this set
+     *
+     * @return amount of elements
+     */
+    public int size() {
+        return this.map.size();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import io.gomint.jraknet.PacketBuffer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author geNAZt
+ * @version 1.0
+ */
+public class BatchDecoderTest {
+
+    @Test
+    public void slicesEndWithTheirPacket() throws Exception {
+        byte[][] packets = { { 0x13, 0, 0, 1, 2, 3 }, { 0x28, 0, 0 }, { 0x0A, 0, 0, 4, 5, 6, 7, 8 } };
+        byte[] batch = compress( packets );
+
+        BatchDecoder decoder = BatchDecoder.get();
+        decoder.inflate( batch, 0, batch.length, Integer.MAX_VALUE );
+
+        PacketBuffer first = null;
+        for ( byte[] packet : packets ) {
+            int length = decoder.readPacketLength();
+            assertEquals( packet.length, length );
+
+            PacketBuffer view = decoder.slice( length );
+            if ( first == null ) {
+                first = view;
+            }
+
+            // Views get reused and only reach to the end of their packet
+            assertSame( first, view );
+            assertEquals( packet.length, view.getRemaining() );
+
+            byte[] data = new byte[view.getRemaining()];
+            view.readBytes( data );
+            assertArrayEquals( packet, data );
+            assertEquals( 0, view.getRemaining() );
+        }
+
+        assertFalse( decoder.hasRemaining() );
+    }
+
+    private static byte[] compress( byte[][] packets ) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for ( byte[] packet : packets ) {
+            payload.write( packet.length );
+            payload.write( packet, 0, packet.length );
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput( payload.toByteArray() );
+        deflater.finish();
+
+        byte[] buffer = new byte[1024];
+        int length = deflater.deflate( buffer );
+        deflater.end();
+
+        byte[] compressed = new byte[length];
+        System.arraycopy( buffer, 0, compressed, 0, length );
+        return compressed;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ *  This code is licensed under the BSD license found in the
+ *  LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypt and decrypt throughput of both cipher backends. Every operation processes one MiB split into packets of
+ * the given size, so the score is MiB/s on a single thread (one core). Run it with {@code mvn -Pbenchmark test}.
+ *
+ * @author geNAZt
+ * @version 1.0
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Threads( 1 )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class PacketCipherBenchmark {
+
+    private static final int DATA_SIZE = 1024 * 1024;
+
+    @Param( { "JDK", "BOUNCYCASTLE" } )
+    private String backend;
+
+    @Param( { "64", "1400", "16384" } )
+    private int packetSize;
+
+    private PacketCipher encryptor;
+    private PacketCipher decryptor;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random( 1337 );
+
+        byte[] key = new byte[32];
+        random.nextBytes( key );
+        byte[] iv = Arrays.copyOf( key, 16 );
+
+        this.encryptor = this.create( true, key, iv );
+        this.decryptor = this.create( false, key, iv );
+
+        this.data = new byte[DATA_SIZE];
+        random.nextBytes( this.data );
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return this.process( this.encryptor );
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return this.process( this.decryptor );
+    }
+
+    private byte[] process( PacketCipher cipher ) {
+        // In place like the encryption handler does it
+        for ( int offset = 0; offset < this.data.length; offset += this.packetSize ) {
+            int length = Math.min( this.packetSize, this.data.length - offset );
+            cipher.process( this.data, offset, length, this.data, offset );
+        }
+
+        return this.data;
+    }
+
+    private PacketCipher create( boolean encryptor, byte[] key, byte[] iv ) throws Exception {
+        if ( "JDK".equals( this.backend ) ) {
+            return new JdkPacketCipher( encryptor, key, iv );
+        }
+
+        return new BouncyCastlePacketCipher( encryptor, key, iv );
+    }
+
+}
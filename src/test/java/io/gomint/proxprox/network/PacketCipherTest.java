@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2017, GoMint, BlackyPaw and geNAZt
+ *
+ *  This code is licensed under the BSD license found in the
+ *  LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author geNAZt
+ * @version 1.0
+ */
+public class PacketCipherTest {
+
+    private byte[] key;
+    private byte[] iv;
+    private byte[] plain;
+
+    @Before
+    public void setup() {
+        Random random = new Random( 1337 );
+
+        this.key = new byte[32];
+        random.nextBytes( this.key );
+        this.iv = Arrays.copyOf( this.key, 16 );
+
+        this.plain = new byte[256 * 1024];
+        random.nextBytes( this.plain );
+    }
+
+    @Test
+    public void backendsProduceSameCiphertextForChunkedInput() throws Exception {
+        // CFB8 keeps state between calls, odd chunk sizes make sure the stream continues correctly
+        int[] chunkSizes = { 1, 7, 16, 17, 1000, 65536 };
+        for ( int chunkSize : chunkSizes ) {
+            byte[] jdk = process( new JdkPacketCipher( true, this.key, this.iv ), this.plain, chunkSize );
+            byte[] bouncyCastle = process( new BouncyCastlePacketCipher( true, this.key, this.iv ), this.plain, chunkSize );
+
+            assertArrayEquals( "Ciphertext differs for chunks of " + chunkSize + " bytes", bouncyCastle, jdk );
+        }
+    }
+
+    @Test
+    public void backendsDecryptEachOther() throws Exception {
+        byte[] jdkEncrypted = process( new JdkPacketCipher( true, this.key, this.iv ), this.plain, 1000 );
+        byte[] bouncyCastleEncrypted = process( new BouncyCastlePacketCipher( true, this.key, this.iv ), this.plain, 333 );
+
+        assertArrayEquals( this.plain, process( new BouncyCastlePacketCipher( false, this.key, this.iv ), jdkEncrypted, 777 ) );
+        assertArrayEquals( this.plain, process( new JdkPacketCipher( false, this.key, this.iv ), bouncyCastleEncrypted, 4096 ) );
+    }
+
+    @Test
+    public void inPlaceMatchesSeparateOutput() throws Exception {
+        byte[] expected = process( new BouncyCastlePacketCipher( true, this.key, this.iv ), this.plain, 1500 );
+
+        PacketCipher[] ciphers = { new JdkPacketCipher( true, this.key, this.iv ), new BouncyCastlePacketCipher( true, this.key, this.iv ) };
+        for ( PacketCipher cipher : ciphers ) {
+            byte[] data = this.plain.clone();
+            for ( int offset = 0; offset < data.length; offset += 1500 ) {
+                int length = Math.min( 1500, data.length - offset );
+                assertEquals( length, cipher.process( data, offset, length, data, offset ) );
+            }
+
+            assertArrayEquals( cipher.getClass().getSimpleName(), expected, data );
+        }
+    }
+
+    private static byte[] process( PacketCipher cipher, byte[] input, int chunkSize ) {
+        byte[] output = new byte[input.length];
+        for ( int offset = 0; offset < input.length; offset += chunkSize ) {
+            int length = Math.min( chunkSize, input.length - offset );
+            assertEquals( length, cipher.process( input, offset, length, output, offset ) );
+        }
+
+        return output;
+    }
+
+}
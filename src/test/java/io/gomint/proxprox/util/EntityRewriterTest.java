@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.util;
+
+import com.sun.management.ThreadMXBean;
+import io.gomint.jraknet.PacketBuffer;
+import io.gomint.proxprox.debug.Debugger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author geNAZt
+ * @version 1.0
+ */
+public class EntityRewriterTest {
+
+    private static final String SERVER = "127.0.0.1:19134";
+    private static final byte ENTITY_MOTION = 0x28;
+    private static final byte ANIMATE = 0x2C;
+    private static final byte MOVE_PLAYER = 0x13;
+    private static final byte[] TRAILER = { 9, 8, 7, 6 };
+
+    // Our client side id needs two var long bytes, the id on the current server only one
+    private static final long OWN_ID = 300;
+    private static final long DOWNSTREAM_ID = 5;
+
+    private EntityRewriter rewriter;
+    private long sameLengthServerId;
+
+    @Before
+    public void setup() {
+        this.rewriter = new EntityRewriter( OWN_ID );
+        this.rewriter.setDebugger( new Debugger( 0 ) );
+
+        // The second start game is a server switch, from then on ids get translated
+        this.rewriter.setCurrentDownStreamId( 1 );
+        this.rewriter.setCurrentDownStreamId( DOWNSTREAM_ID );
+
+        // 300 collides with our own id and becomes 1, then 1 collides with that and becomes 2
+        assertEquals( 1, this.rewriter.addEntity( SERVER, 300 ) );
+        assertEquals( 2, this.rewriter.addEntity( SERVER, 1 ) );
+        this.sameLengthServerId = 1;
+    }
+
+    @Test
+    public void sameLengthIdIsOverwrittenInPlace() {
+        PacketBuffer buffer = packet( ENTITY_MOTION, varLong( this.sameLengthServerId ), TRAILER );
+        byte[] array = buffer.getBuffer();
+        int pos = readHeader( buffer );
+
+        PacketBuffer result = this.rewriter.rewriteServerToClient( SERVER, ENTITY_MOTION, pos, buffer );
+
+        assertSame( buffer, result );
+        assertSame( array, result.getBuffer() );
+        assertEquals( pos, result.getPosition() );
+        assertArrayEquals( concat( varLong( 2 ), TRAILER ), remaining( result ) );
+    }
+
+    @Test
+    public void shorterIdIsShiftedInPlace() {
+        PacketBuffer buffer = packet( ENTITY_MOTION, varLong( 300 ), TRAILER );
+        int pos = readHeader( buffer );
+
+        PacketBuffer result = this.rewriter.rewriteServerToClient( SERVER, ENTITY_MOTION, pos, buffer );
+
+        assertSame( buffer, result );
+        assertArrayEquals( concat( varLong( 1 ), TRAILER ), remaining( result ) );
+    }
+
+    @Test
+    public void longerIdUsesConsumedHeader() {
+        PacketBuffer buffer = packet( ENTITY_MOTION, varLong( DOWNSTREAM_ID ), TRAILER );
+        int pos = readHeader( buffer );
+
+        PacketBuffer result = this.rewriter.rewriteServerToClient( SERVER, ENTITY_MOTION, pos, buffer );
+
+        assertSame( buffer, result );
+        assertEquals( pos - 1, result.getPosition() );
+        assertArrayEquals( concat( varLong( OWN_ID ), TRAILER ), remaining( result ) );
+    }
+
+    @Test
+    public void longerIdWithoutRoomIsCopiedOnce() {
+        // No header in front of the data, there is no room to grow into
+        PacketBuffer buffer = new PacketBuffer( concat( varLong( DOWNSTREAM_ID ), TRAILER ), 0 );
+
+        PacketBuffer result = this.rewriter.rewriteServerToClient( SERVER, ENTITY_MOTION, 0, buffer );
+
+        assertNotSame( buffer, result );
+        assertArrayEquals( concat( varLong( OWN_ID ), TRAILER ), remaining( result ) );
+    }
+
+    @Test
+    public void animateKeepsDataAroundTheId() {
+        byte[] action = { 4 };
+        PacketBuffer buffer = packet( ANIMATE, action, concat( varLong( 300 ), TRAILER ) );
+        int pos = readHeader( buffer );
+
+        PacketBuffer result = this.rewriter.rewriteServerToClient( SERVER, ANIMATE, pos, buffer );
+
+        assertArrayEquals( concat( action, concat( varLong( 1 ), TRAILER ) ), remaining( result ) );
+    }
+
+    @Test
+    public void clientIdsAreTranslatedBack() {
+        PacketBuffer buffer = packet( MOVE_PLAYER, varLong( OWN_ID ), TRAILER );
+        int pos = readHeader( buffer );
+
+        PacketBuffer result = this.rewriter.rewriteClientToServer( SERVER, MOVE_PLAYER, pos, buffer );
+
+        assertSame( buffer, result );
+        assertArrayEquals( concat( varLong( DOWNSTREAM_ID ), TRAILER ), remaining( result ) );
+    }
+
+    @Test
+    public void inPlaceRewriteDoesNotAllocate() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue( threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() );
+
+        // Rewrite the same packet back and forth, every call overwrites the id with one of the same length
+        PacketBuffer buffer = packet( MOVE_PLAYER, varLong( this.sameLengthServerId ), TRAILER );
+        int pos = readHeader( buffer );
+        rewriteBackAndForth( buffer, pos, 100000 );
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( threadId );
+        rewriteBackAndForth( buffer, pos, 1000000 );
+        long allocated = threads.getThreadAllocatedBytes( threadId ) - before;
+
+        assertTrue( "Allocated " + allocated + " bytes for 1M rewrites", allocated < 64 * 1024 );
+    }
+
+    private void rewriteBackAndForth( PacketBuffer buffer, int pos, int rounds ) {
+        for ( int i = 0; i < rounds; i++ ) {
+            buffer.setPosition( pos );
+            this.rewriter.rewriteServerToClient( SERVER, MOVE_PLAYER, pos, buffer );
+            buffer.setPosition( pos );
+            this.rewriter.rewriteClientToServer( SERVER, MOVE_PLAYER, pos, buffer );
+        }
+    }
+
+    private static PacketBuffer packet( byte packetId, byte[] data, byte[] trailer ) {
+        byte[] header = { packetId, 0, 0 };
+        return new PacketBuffer( concat( header, concat( data, trailer ) ), 0 );
+    }
+
+    private static int readHeader( PacketBuffer buffer ) {
+        buffer.readByte();
+        buffer.readShort();
+        return buffer.getPosition();
+    }
+
+    private static byte[] remaining( PacketBuffer buffer ) {
+        byte[] data = new byte[buffer.getRemaining()];
+        buffer.readBytes( data );
+        return data;
+    }
+
+    private static byte[] varLong( long value ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ( ( value & ~0x7FL ) != 0 ) {
+            out.write( (int) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+
+        out.write( (int) value );
+        return out.toByteArray();
+    }
+
+    private static byte[] concat( byte[] first, byte[] second ) {
+        byte[] result = Arrays.copyOf( first, first.length + second.length );
+        System.arraycopy( second, 0, result, first.length, second.length );
+        return result;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016, GoMint, BlackyPaw and geNAZt
+ *
+ * This code is licensed under the BSD license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package io.gomint.proxprox.util;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author geNAZt
+ * @version 1.0
+ */
+public class LongLongMapTest {
+
+    private static final long MISSING = Long.MIN_VALUE;
+
+    @Test
+    public void behavesLikeHashMap() {
+        LongLongMap map = new LongLongMap( 4 );
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random( 42 );
+
+        // Few distinct keys (including 0) so puts, overwrites and removes hit the same probe chains
+        for ( int i = 0; i < 200000; i++ ) {
+            long key = random.nextInt( 512 ) - 64;
+            switch ( random.nextInt( 3 ) ) {
+                case 0:
+                    map.put( key, i );
+                    expected.put( key, (long) i );
+                    break;
+                case 1:
+                    Long removed = expected.remove( key );
+                    assertEquals( removed != null ? removed : MISSING, map.remove( key, MISSING ) );
+                    break;
+                default:
+                    Long value = expected.get( key );
+                    assertEquals( value != null ? value : MISSING, map.get( key, MISSING ) );
+                    assertEquals( value != null, map.containsKey( key ) );
+                    break;
+            }
+
+            assertEquals( expected.size(), map.size() );
+        }
+
+        for ( Map.Entry<Long, Long> entry : expected.entrySet() ) {
+            assertEquals( (long) entry.getValue(), map.get( entry.getKey(), MISSING ) );
+        }
+    }
+
+    @Test
+    public void doesNotAllocateOnceSized() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue( threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() );
+
+        LongLongMap map = new LongLongMap( 256 );
+        churn( map, 100000 );
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( threadId );
+        churn( map, 1000000 );
+        long allocated = threads.getThreadAllocatedBytes( threadId ) - before;
+
+        // A boxed HashMap needs far more than 16 MB for this, only the measurement itself may allocate a bit
+        assertTrue( "Allocated " + allocated + " bytes for 1M operations", allocated < 64 * 1024 );
+    }
+
+    private static void churn( LongLongMap map, int operations ) {
+        long sum = 0;
+        for ( int i = 0; i < operations; i++ ) {
+            long key = ( i * 31L ) % 200 + 1;
+            map.put( key, i );
+            sum += map.get( key, MISSING );
+            if ( ( i & 1 ) == 0 ) {
+                sum += map.remove( key, MISSING );
+            }
+        }
+
+        assertTrue( sum != 0 );
+    }
+
+}